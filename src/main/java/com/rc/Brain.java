@@ -1,18 +1,21 @@
 package com.rc ;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
 
 import com.rc.neurons.*;
-import org.ejml.data.*;
-import org.ejml.ops.SortCoupledArray_F64;
-import org.ejml.sparse.csc.CommonOps_DSCC;
 import org.jtransforms.fft.DoubleFFT_1D;
 
 //import org.la4j.Vector;
@@ -27,7 +30,7 @@ public class Brain  {
 
 	private final static Logger log = LoggerFactory.getLogger( Brain.class ) ;
 
-	private static final Random rng = new Random(24) ;	// utility random number generator
+	private static final SplittableRandom seeds = new SplittableRandom(24) ;	// seeds brains made without one
 
 	private final static int HISTORY_LENGTH = 1024 ;
 
@@ -38,20 +41,22 @@ public class Brain  {
     // Used to calc rands with the following stats
 	private final static double WEIGHT_MEAN = 0.4 ;
     private final static double WEIGHT_SIGMA = 0.25 ;
+	private final static double WEIGHT_LEVELS = Genome.NUMBER_GRANULARITY - 1 ;	// a genome weight is 0..1 in these steps
 	
 	private final double outputHistory[] ;
-	private final boolean outputSpikeHistory[] ;
+	private final long outputSpikeHistory[] ;		// bitset, one bit per history entry
 	private int historyIndex ;
 	private int followingId ;
 	
-    private final DMatrixSparseCSC synapses ;
-    private final DMatrixSparseCSC training ;
+    private final Synapses synapses ;
+    private double training[] ;				// pending weight changes, parallel to the synapse weights
 
 	private final int numColumns ;
 	private final int numRows ;
 	private final Neuron neurons[] ;			// neurons in each layer
 	private final InputNeuron inputNeurons[] ;			// neurons in each layer
 	private final OutputNeuron outputNeurons[] ;			// neurons in each layer
+	private final NeuronStore store ;			// state of every neuron, the neurons are views
 
 	private double clock ;
 	private int epoch ;
@@ -60,12 +65,29 @@ public class Brain  {
 
 	private double runningScore ;
 
+	private final double currents[] ;			// reused buffer of input to each neuron
+	private boolean eventDriven ;
+	private boolean onlineLearning ;			// apply weight changes as they're made
+	private TraceStdp traceStdp ;				// null for pairwise STDP in each neuron
+	private QuantizedSynapses quantized ;		// frozen fixed point weights, null if not frozen
+
+	// scratch space reused every tick - so the tick loop creates no garbage
+	private final double denseOutputs[] ;
+	private final double denseCurrents[] ;
+	private final EdgeList sources ;
+
+	// optional fork/join step - null when stepping on the calling thread
+	private ForkJoinPool pool ;
+	private StepBlocks stepBlocks ;
+
 	private boolean fftSpike ;
 	private DoubleFFT_1D fft ;
 
 
 	/**
-	 * Create a brain from a genome (bitmask).
+	 * Create a brain from a genome, @see #toGenome for the layout. A
+	 * child's genome may hold damaged genes, they're decoded to
+	 * something valid rather than failing.
 	 * 
 	 * @param tickPeriod the period each clock tick represents
 	 * @param g
@@ -74,97 +96,147 @@ public class Brain  {
 		this.tickPeriod = tickPeriod ;
 		this.clock = 0 ;
 
-        this.numRows = g.getInt( 0 ) ;
-        this.numColumns = g.getInt( 1 ) ;
+		Genome.Reader genes = g.reader( 0 ) ;
+		this.numRows = genes.nextVarint() ;
+		this.numColumns = genes.nextVarint() ;
 
 		int numNeurons = numRows * numColumns ;
-        this.neurons = new Neuron[numNeurons] ;
-
-        this.inputNeurons = new InputNeuron[ g.getInt(2) ] ;
-        this.outputNeurons = new OutputNeuron[ g.getInt(3) ] ;
-
-        int ix = 4 ;
-
-        for( int i=0 ; i<neurons.length ; i++ ) {
-            int t = g.getInt( ix++ ) ;
-            NeuronType type = NeuronType.fromOrdinal( t ) ;
-            try {
-                neurons[i] = NeuronFactory.getNeuron(type, i);
-            } catch( Exception e ) {
-                neurons[i] = new NeuronRS( i ) ;
-            }
-        }
-        this.connectionProbability = 1.0 + g.getDouble( ix++ ) ;
-
-		// TODO put this back - it's important
-		/*
-		// overwrite the inputs in the liquid
-        int dy = getRows() / getNumInputs() ;
-        int inputIndex = 0 ;
-        for( int i=0 ; i<this.inputNeurons.length ; i++, inputIndex+=dy ) {
-            this.inputNeurons[i] = this.neurons[inputIndex] ;
-        }
-
-        // overwrite the outputs in the liquid
-        dy = getRows() / getNumOutputs() ;
-        int outputIndex = neurons.length - dy ;
+		this.neurons = new Neuron[numNeurons] ;
 
-        for( int i=0 ; i<this.outputNeurons.length ; i++, outputIndex-=dy ) {
-            this.outputNeurons[i] = this.neurons[outputIndex] ;
-        }
-		*/
-
-        this.synapses = new DMatrixSparseCSC( neurons.length, neurons.length,0) ;
-        this.training = new DMatrixSparseCSC( neurons.length, neurons.length,0) ;
-
-        // connectLayers() ;
+		int numInputs = genes.nextVarint() ;
+		int numOutputs = genes.nextVarint() ;
 
-		int numConnections = g.getInt( ix++ ) ;
-		for( int i=0 ; i<numConnections ; i++ ) {
-			int r = g.getInt( ix++ ) ;
-			int c = g.getInt( ix++ ) ;
-			double w = g.getDouble( ix++ ) ;
-			log.debug("{}, Setting {}, {} to {}", ix, r,c,w ) ;
-			synapses.set(r, c, w) ;
+		for( int i=0 ; i<neurons.length ; i++ ) {
+			int t = genes.nextInt() ;
+			try {
+				NeuronType type = NeuronType.fromOrdinal( t ) ;
+				if( type == NeuronType.IN || type == NeuronType.OUT ) {
+					throw new IllegalArgumentException( "Inputs & outputs have fixed places" ) ;
+				}
+				neurons[i] = NeuronFactory.getNeuron(type, i);
+			} catch( Exception e ) {
+				neurons[i] = new NeuronRS( i ) ;
+			}
+		}
+		this.inputNeurons = new InputNeuron[ numInputs ] ;
+		this.outputNeurons = new OutputNeuron[ numOutputs ] ;
+		placeInputsAndOutputs() ;
+
+		this.connectionProbability = 1.0 + genes.nextDouble() ;
+
+		this.store = attachNeurons() ;
+		this.currents = new double[ neurons.length ] ;
+		this.eventDriven = true ;
+		this.denseOutputs = new double[ neurons.length ] ;
+		this.denseCurrents = new double[ neurons.length ] ;
+		this.sources = new EdgeList() ;
+
+		// stream each column's synapses into a builder, it sorts them in one pass.
+		// When the columns are records each one starts at its own record, so a
+		// count broken by structural mutation only spoils its own column
+		boolean aligned = g.records() == 2 * neurons.length + 1 ;
+		Synapses.Builder builder = new Synapses.Builder( neurons.length ) ;
+		for( int c=0 ; c<neurons.length ; c++ ) {
+			int end = g.capacity() ;
+			if( aligned ) {
+				genes = g.reader( g.record( neurons.length + 1 + c ) ) ;
+				end = c+1 < neurons.length ? g.record( neurons.length + 2 + c ) : end ;
+			}
+			int count = Math.min( genes.nextVarint(), neurons.length ) ;
+			int r = 0 ;
+			for( int i=0 ; i<count && genes.index()<end ; i++ ) {
+				int delta = genes.nextVarint() ;
+				r = i==0 ? c + ( ( delta >>> 1 ) ^ -( delta & 1 ) ) : r + delta ;
+				float w = (float)( genes.nextInt() / WEIGHT_LEVELS ) ;
+				if( r >= 0 && r < neurons.length ) {	// mutation may break an index
+					builder.add( r, c, w ) ;
+				}
+			}
 		}
+		this.synapses = builder.build() ;
+		shapeTraining() ;
 
-        this.fftSpike = false ;
-        this.fft = null ;
+		this.fftSpike = false ;
+		this.fft = null ;
 
-        this.outputHistory = new double[HISTORY_LENGTH] ;
-		this.outputSpikeHistory = new boolean[HISTORY_LENGTH] ;
+		this.outputHistory = new double[HISTORY_LENGTH] ;
+		this.outputSpikeHistory = new long[HISTORY_LENGTH >>> 6] ;
 	}
 
 
 	/**
 	 * save the brain as a coded sequence. This is used
-	 * during evolution.
-	 * 
+	 * during evolution. Counts and indexes are varints, so any size
+	 * of grid fits.
+	 *
+	 *	header		rows, cols, inputs, outputs
+	 *	types		a number per neuron
+	 *	connection probability
+	 *	synapses	per column, the count then each row & weight.
+	 *				The first row is zigzag coded from the column,
+	 *				the rest are deltas from the previous row.
+	 *				Weights are quantized to one number.
+	 *
+	 * A typical synapse costs 2 numbers.
+	 *
+	 * Each type, the connection probability and each column is a record,
+	 * so crossover swaps whole columns. The types, the probability and the
+	 * weights are mutable, so mutation can't break a count or a row. Those
+	 * change only by @see Genome#mutateStructure, with their own rate.
 	 */
 	public Genome toGenome() {
 		Genome rc = new Genome() ;
 
-        rc.set( getRows() ) ;
-        rc.set( getColumns() ) ;
-        rc.set( inputNeurons.length ) ;
-        rc.set( outputNeurons.length ) ;
+		rc.setVarint( getRows() ) ;
+		rc.setVarint( getColumns() ) ;
+		rc.setVarint( inputNeurons.length ) ;
+		rc.setVarint( outputNeurons.length ) ;
 
-        for( int i=0 ; i<neurons.length ; i++) {
-			rc.set( neurons[i].getType().ordinal() ) ;
+		for( int i=0 ; i<neurons.length ; i++) {
+			rc.startRecord() ;
+			rc.setMutable( neurons[i].getType().ordinal() ) ;
 		}
 
-		rc.set( connectionProbability - 1.0  ) ;
+		rc.startRecord() ;
+		rc.setMutable( connectionProbability - 1.0  ) ;
+
+		for( int c=0 ; c<synapses.size() ; c++ ) {
+			rc.startRecord() ;
+			rc.setVarint( synapses.colEnd(c) - synapses.colStart(c) ) ;
+			int prev = c ;
+			for( int s=synapses.colStart(c) ; s<synapses.colEnd(c) ; s++ ) {
+				int r = synapses.row(s) ;
+				if( s == synapses.colStart(c) ) {
+					int d = r - c ;
+					rc.setVarint( ( d << 1 ) ^ ( d >> 31 ) ) ;
+				} else {
+					rc.setVarint( r - prev ) ;
+				}
+				prev = r ;
+				rc.setMutable( (int)Math.round( clampWeight( synapses.weight(s) ) * WEIGHT_LEVELS ) ) ;
+			}
+		}
+		
+		log.debug( "Genome length: {} ", rc.capacity() ) ;
+		return rc ;
+	}
 
-		rc.set( synapses.nz_length ) ;
 
-		eachNonZero( (i,j,v) -> {
-           rc.set( i ) ;
-           rc.set( j ) ;
-		   rc.set( v ) ;
-		   log.debug( "{} Saving {}, {} = {}", rc.capacity(), i,j,v) ;
- 		}) ;
-		
-		log.info( "Genome length: {} ", rc.capacity() ) ;
+	/**
+	 * The genes that describe the shape of a brain, children
+	 * must copy these from a parent unchanged.
+	 *
+	 * @return the indexes of the header genes
+	 */
+	public static int[] genomeHeader( Genome g ) {
+		Genome.Reader genes = g.reader( 0 ) ;
+		for( int i=0 ; i<4 ; i++ ) {
+			genes.nextVarint() ;
+		}
+		int rc[] = new int[ genes.index() ] ;
+		for( int i=0 ; i<rc.length ; i++ ) {
+			rc[i] = i ;
+		}
 		return rc ;
 	}
 
@@ -179,14 +251,31 @@ public class Brain  {
      * @param cols the number of cols in the liquid
 	 */
 	public Brain( double tickPeriod, int numInputs, int numOutputs, int rows, int cols ) {
+		this( tickPeriod, numInputs, numOutputs, rows, cols, nextSeed() ) ;
+	}
 
+
+	/**
+	 * Create a new instance of a brain. All the random choices come from
+	 * streams of the seed, so the same seed always makes the same brain.
+	 * 
+	 * @param tickPeriod the period of a clock tick
+     * @param numInputs the number of input neurons
+     * @param numOutputs the number of output neurons
+     * @param rows the number of rows in the liquid
+     * @param cols the number of cols in the liquid
+	 * @param seed the seed for the random choices
+	 */
+	public Brain( double tickPeriod, int numInputs, int numOutputs, int rows, int cols, long seed ) {
+
+		SplittableRandom rng = new SplittableRandom( seed ) ;
 		this.tickPeriod = tickPeriod ;
 		this.connectionProbability = 1.0+CONNECTION_DENSITY ;
 		
 		this.clock = 0 ;
 
 		this.outputHistory = new double[HISTORY_LENGTH] ; 
-		this.outputSpikeHistory = new boolean[HISTORY_LENGTH] ;
+		this.outputSpikeHistory = new long[HISTORY_LENGTH >>> 6] ;
 		this.historyIndex = 0 ;
 
 		log.info( "Creating matrix {} x {}", rows, cols ) ;
@@ -199,73 +288,202 @@ public class Brain  {
 
 		// fill liquid with neurons
         for( int i=0 ; i<this.neurons.length ; i++ ) {
-			this.neurons[i] = NeuronFactory.getNeuron( i ) ;
+			this.neurons[i] = NeuronFactory.getNeuron( i, rng ) ;
         }
 
-        // overwrite the inputs in the liquid
-		int start = ( rows - numInputs ) >> 1 ;
-		int ix = start ;
-		for( int i=0 ; i<this.inputNeurons.length ; i++, ix++ ) {
-            this.inputNeurons[i] = new InputNeuron( ix ) ;
-			this.neurons[ix] = this.inputNeurons[i] ;
-		}
+		placeInputsAndOutputs() ;
 
-		// overwrite the outputs in the liquid
-		start = ( rows - numOutputs ) >> 1 ;
-		ix = (cols-1) * rows + start ;
+        this.store = attachNeurons() ;
+        this.currents = new double[ neurons.length ] ;
+        this.eventDriven = true ;
+        this.denseOutputs = new double[ neurons.length ] ;
+        this.denseCurrents = new double[ neurons.length ] ;
+        this.sources = new EdgeList() ;
+        this.synapses = connectLayers( rng ) ;
 
-		for( int i=0 ; i<this.outputNeurons.length ; i++, ix++ ) {
-			this.outputNeurons[i] = new OutputNeuron( ix ) ;
-			this.neurons[ix] = this.outputNeurons[i] ;
-		}
+		shapeTraining() ;
+		this.fftSpike = false ;
+		this.fft = null ;
+	}
+
+
+	/**
+	 * Reopen a brain from a mapped image, @see BrainImage. The
+	 * neurons carry on from the state they were saved in. The synapses
+	 * are read from the mapped file, only the neurons are on the heap.
+	 * 
+	 * @param tickPeriod the period of a clock tick
+	 * @param image the mapped file
+	 */
+	Brain( double tickPeriod, BrainImage image ) {
+		this.tickPeriod = tickPeriod ;
+		this.connectionProbability = image.connectionProbability ;
+		this.clock = image.clock ;
+
+		this.outputHistory = new double[HISTORY_LENGTH] ; 
+		this.outputSpikeHistory = new long[HISTORY_LENGTH >>> 6] ;
+		this.historyIndex = 0 ;
 
-        this.synapses = new DMatrixSparseCSC( neurons.length, neurons.length,0) ;
-        this.training = new DMatrixSparseCSC( neurons.length, neurons.length,0) ;
+		this.numRows = image.rows ;
+		this.numColumns = image.cols ;
+		this.neurons = new Neuron[ numRows * numColumns ] ;
 
-		connectLayers() ;
+		List<InputNeuron> inputs = new ArrayList<>() ;
+		List<OutputNeuron> outputs = new ArrayList<>() ;
+		for( int i=0 ; i<neurons.length ; i++ ) {
+			NeuronType type = image.type( i ) ;
+			if( type == NeuronType.IN ) {
+				InputNeuron n = new InputNeuron( i ) ;
+				inputs.add( n ) ;
+				neurons[i] = n ;
+			} else if( type == NeuronType.OUT ) {
+				OutputNeuron n = new OutputNeuron( i ) ;
+				outputs.add( n ) ;
+				neurons[i] = n ;
+			} else {
+				try {
+					neurons[i] = NeuronFactory.getNeuron( type, i ) ;
+				} catch( Exception e ) {
+					neurons[i] = new NeuronRS( i ) ;
+				}
+			}
+		}
+		this.inputNeurons = inputs.toArray( new InputNeuron[ inputs.size() ] ) ;
+		this.outputNeurons = outputs.toArray( new OutputNeuron[ outputs.size() ] ) ;
+
+		this.store = attachNeurons() ;
+		store.setClock( clock ) ;
+		image.restoreState( store ) ;
+		this.currents = new double[ neurons.length ] ;
+		this.eventDriven = true ;
+		this.denseOutputs = new double[ neurons.length ] ;
+		this.denseCurrents = new double[ neurons.length ] ;
+		this.sources = new EdgeList() ;
+		this.synapses = image.synapses() ;
+
+		shapeTraining() ;
 		this.fftSpike = false ;
 		this.fft = null ;
 	}
 
 
 	/**
-	 * Connects neurons in each layer, to the previous layer
-	 * 
+	 * Overwrite the middle of the first column with the inputs and
+	 * the middle of the last column with the outputs.
 	 */
-	private void connectLayers() {
-
-        int fromColumn = 0 ;
-        int fromRow = 0 ;
-
-        for( int from=0 ; from<numNeurons() ; from++ ) {
-			fromColumn = from / numRows ;
-            int toColumn = fromColumn+1 ;
-            int toRow = 0 ;
-
-            for( int to=toColumn*numRows ; to<numNeurons() ; to++ ) {
-                double dist = Math.sqrt(
-                                    (fromColumn - toColumn) * (fromColumn - toColumn) +
-                                    (fromRow - toRow) * (fromRow - toRow)
-                                ) ;
-                if( dist > 0 ) {   // no self connections
-					double p = gammaPDF( dist / connectionProbability ) ;
-					if( rng.nextDouble() < p ) {
-						synapses.set( to, from, getRandomWeight() ) ;
-					}
-                }
-                toRow++ ;
-                if( toRow>=numRows ) {
-                    toColumn++ ;
-                    toRow = 0 ;
-                }
+	private void placeInputsAndOutputs() {
+		int ix = ( numRows - inputNeurons.length ) >> 1 ;
+		for( int i=0 ; i<inputNeurons.length ; i++, ix++ ) {
+			inputNeurons[i] = new InputNeuron( ix ) ;
+			neurons[ix] = inputNeurons[i] ;
+		}
+
+		ix = (numColumns-1) * numRows + ( ( numRows - outputNeurons.length ) >> 1 ) ;
+		for( int i=0 ; i<outputNeurons.length ; i++, ix++ ) {
+			outputNeurons[i] = new OutputNeuron( ix ) ;
+			neurons[ix] = outputNeurons[i] ;
+		}
+	}
+
+
+	/**
+	 * Move the state of every neuron into one flat store, so 
+	 * a step walks primitive arrays rather than neuron objects.
+	 */
+	private NeuronStore attachNeurons() {
+		NeuronStore rc = new NeuronStore( neurons.length ) ;
+		for( int i=0 ; i<neurons.length ; i++ ) {
+			neurons[i].attach( rc, i ) ;
+		}
+		return rc ;
+	}
+
+
+	/**
+	 * Training only ever touches existing synapses, so pending changes
+	 * are kept in an array parallel to the synapse weights. Updates are
+	 * indexed by the weight's slot and never insert anything.
+	 */
+	private void shapeTraining() {
+		training = new double[ synapses.nnz() ] ;
+	}
+
+
+	/**
+	 * Connects each neuron to neurons in later columns, with a chance
+	 * that falls off with distance ( @see #gammaPDF ). 
+	 *
+	 * Every pair of neurons with the same offset ( columns, rows ) apart
+	 * has the same chance, so the pairs are generated one offset at a 
+	 * time. The sources for an offset are a rectangle of the grid, the
+	 * connected ones are found by skipping a geometric number of sources 
+	 * between each hit. So the cost is one draw per synapse plus a little
+	 * per offset, rather than a draw for every pair of neurons.
+	 *
+	 * Each column offset has its own random stream, split from the 
+	 * brain's in order, so the offsets are generated in parallel and 
+	 * the result doesn't depend on the thread timing.
+	 */
+	private Synapses connectLayers( SplittableRandom rng ) {
+
+		final SplittableRandom streams[] = new SplittableRandom[ numColumns ] ;
+		for( int dx=1 ; dx<numColumns ; dx++ ) {
+			streams[dx] = rng.split() ;
+		}
+		final Synapses.Builder offsets[] = new Synapses.Builder[ numColumns ] ;
+		IntStream.range( 1, numColumns ).parallel().forEach( 
+				dx -> offsets[dx] = connectOffset( dx, streams[dx] ) ) ;
+
+		Synapses.Builder rc = new Synapses.Builder( numNeurons() ) ;
+		for( int dx=1 ; dx<numColumns ; dx++ ) {
+			rc.addAll( offsets[dx] ) ;
+		}
+		return rc.build() ;
+	}
+
+
+	/**
+	 * Connect all neurons to the neurons dx columns later
+	 */
+	private Synapses.Builder connectOffset( int dx, SplittableRandom rng ) {
+		Synapses.Builder rc = new Synapses.Builder( numNeurons() ) ;
+		for( int dy=1-numRows ; dy<numRows ; dy++ ) {
+			double dist = Math.sqrt( dx*dx + dy*dy ) ;
+			double p = gammaPDF( dist / connectionProbability ) ;
+			if( !( p > 0 ) ) {
+				continue ;
+			}
+			// sources that have a target at this offset
+			int fromRow0 = Math.max( 0, -dy ) ;
+			int height = numRows - Math.abs( dy ) ;
+			int candidates = ( numColumns - dx ) * height ;
+			double logQ = Math.log1p( -Math.min( p, 1.0 ) ) ;
+
+			for( long k=skip( logQ, rng ) ; k<candidates ; k += 1 + skip( logQ, rng ) ) {
+				int fromColumn = (int)( k / height ) ;
+				int fromRow = fromRow0 + (int)( k % height ) ;
+				int from = fromColumn * numRows + fromRow ;
+				int to = ( fromColumn + dx ) * numRows + fromRow + dy ;
+				rc.add( to, from, getRandomWeight( rng ) ) ;
 			}
+		}
+		return rc ;
+	}
 
-            fromRow++ ;
-            if( fromRow>=numRows ) {
-                fromColumn++ ;
-                fromRow = 0 ;
-            }
-        }
+
+	/**
+	 * The number of failures before the next success, for trials 
+	 * that fail with probability exp( logQ )
+	 */
+	private static long skip( double logQ, SplittableRandom rng ) {
+		if( logQ == Double.NEGATIVE_INFINITY ) {
+			return 0 ;		// always succeeds
+		}
+		if( logQ == 0 ) {
+			return Integer.MAX_VALUE ;		// too unlikely to ever succeed
+		}
+		double skip = Math.floor( Math.log( 1.0 - rng.nextDouble() ) / logQ ) ;
+		return skip < Integer.MAX_VALUE ? (long)skip : Integer.MAX_VALUE ;	// more than any offset has
 	}
 
 //    private static final int ALPHA = 4 ;
@@ -307,13 +525,32 @@ public class Brain  {
 	 *  
 	 * @return
 	 */
-	protected float getRandomWeight() {
-		double rc = rng.nextGaussian() * WEIGHT_SIGMA + WEIGHT_MEAN ;
+	protected float getRandomWeight( SplittableRandom rng ) {
+		double rc = nextGaussian( rng ) * WEIGHT_SIGMA + WEIGHT_MEAN ;
 		rc = Math.max( rc, 0.1 ) ;
 		rc = Math.min( rc, 1.0 ) ;
 		return (float)rc ;
 	}
 
+	/**
+	 * A standard normal sample, by the polar method
+	 */
+	private static double nextGaussian( SplittableRandom rng ) {
+		double v1, v2, s ;
+		do {
+			v1 = 2 * rng.nextDouble() - 1 ;
+			v2 = 2 * rng.nextDouble() - 1 ;
+			s = v1 * v1 + v2 * v2 ;
+		} while( s >= 1 || s == 0 ) ;
+		return v1 * Math.sqrt( -2 * Math.log(s) / s ) ;
+	}
+
+	private static long nextSeed() {
+		synchronized( seeds ) {
+			return seeds.nextLong() ;
+		}
+	}
+
 	/**
 	 * Execute one time step: traverse the graph, 
 	 * 	sum all inputs to each neuron. 
@@ -336,9 +573,12 @@ public class Brain  {
 		}
 
 		// Then write the output as an atomic op
-		for( int i=0 ; i<neurons.length; i++ ) {
-			neurons[i].step( newPotentials[i], clock ) ;
+		if( pool == null ) {
+			store.step( newPotentials, 0, neurons.length, clock ) ;
+		} else {
+			stepBlocks.run( StepBlocks.INTEGRATE, newPotentials ) ;
 		}
+		store.endStep( clock ) ;
 	}
 
 
@@ -410,22 +650,143 @@ public class Brain  {
      * @return return an array of output potentials (1 per neuron )
      */
     protected double[] calculateNewPotentials() {
-
-        DMatrixRMaj neuronOutputs = new DMatrixRMaj(  neurons.length, 1 ) ;
+		if( eventDriven ) {
+			if( pool != null ) {
+				stepBlocks.run( StepBlocks.GATHER, currents ) ;
+				return currents ;
+			}
+			return propagateSpikes() ;
+		}
 
 		for( int i=0 ; i<neurons.length ; i++ ) {
 			double v = 0.0 ;
-			if( neurons[i].isSpiking() ) {
+			if( store.isSpiking(i) ) {
 			    // spike value is -ve for inhibitors
-				v = neurons[i].getSpikeValue() ;
+				v = store.getSpikeValue(i) ;
+			}
+			denseOutputs[i] = v ;
+		}
+
+		if( quantized != null ) {
+			quantized.mult( denseOutputs, denseCurrents ) ;
+		} else {
+			synapses.mult( denseOutputs, denseCurrents ) ;
+		}
+
+        return denseCurrents ;
+	}
+
+
+	/**
+	 * Show each pattern for a number of ticks, then pick the output with
+	 * the highest firing rate as the winner. The brain is not trained.
+	 *
+	 * @param patterns the inputs, pattern i should make output i win
+	 * @param ticks the number of ticks to show each pattern
+	 * @return the fraction of patterns classified correctly
+	 */
+	public double accuracy( double patterns[][], int ticks ) {
+		int correct = 0 ;
+		for( int p=0 ; p<patterns.length ; p++ ) {
+			for( int t=0 ; t<ticks ; t++ ) {
+				step( patterns[p] ) ;
+			}
+			int winner = 0 ;
+			for( int i=1 ; i<outputNeurons.length ; i++ ) {
+				if( outputNeurons[i].frequency() > outputNeurons[winner].frequency() ) {
+					winner = i ;
+				}
 			}
-			neuronOutputs.set( i, v ) ;
+			correct += winner == p ? 1 : 0 ;
+		}
+		return (double)correct / patterns.length ;
+	}
+
+
+	/**
+	 * Same result as the A * n multiply above, but only the columns 
+	 * of the neurons that spiked are visited. Most neurons are quiet
+	 * in any tick so this costs spikes x fan-out rather than the 
+	 * whole synapse count.
+	 *
+	 * @return the reused buffer of output potentials (1 per neuron )
+	 */
+	private double[] propagateSpikes() {
+		Arrays.fill( currents, 0.0 ) ;
+
+		final long spikes[] = store.getSpikes() ;
+		final int offset = store.spikeOffset(0) ;
+
+		// frozen weights have their own kernel, chosen once per step
+		if( quantized != null ) {
+			for( int w=0 ; w<store.words() ; w++ ) {
+				for( long bits=spikes[offset+w] ; bits!=0 ; bits &= bits-1 ) {
+					int col = (w<<6) + Long.numberOfTrailingZeros( bits ) ;
+					quantized.scatter( col, store.getSpikeValue(col), currents ) ;
+				}
+			}
+			return currents ;
 		}
 
-        DMatrixRMaj rc = new DMatrixRMaj( neurons.length, 1 ) ;
-        CommonOps_DSCC.mult( synapses, neuronOutputs, rc ) ;
+		final IntBuffer colIdx = synapses.colIdx() ;
+		final IntBuffer nzRows = synapses.rows() ;
+		final FloatBuffer nzValues = synapses.weights() ;
+
+		for( int w=0 ; w<store.words() ; w++ ) {
+			for( long bits=spikes[offset+w] ; bits!=0 ; bits &= bits-1 ) {
+				int col = (w<<6) + Long.numberOfTrailingZeros( bits ) ;
+				double v = store.getSpikeValue(col) ;
+				int idx1 = colIdx.get(col+1) ;
+				for( int i=colIdx.get(col) ; i<idx1 ; i++ ) {
+					currents[ nzRows.get(i) ] += nzValues.get(i) * v ;
+				}
+			}
+		}
+		return currents ;
+	}
+
+
+	/**
+	 * Gather the input to a block of neurons from every spiking neuron. Each
+	 * row is summed in the same ( column ) order as @see #propagateSpikes
+	 * so the result is identical, but blocks can run at the same time.
+	 * Rows are sorted in each column, so the block's rows are found by a
+	 * binary search.
+	 */
+	private void gatherSpikes( int from, int to ) {
+		Arrays.fill( currents, from, to, 0.0 ) ;
+
+		final long spikes[] = store.getSpikes() ;
+		final int offset = store.spikeOffset(0) ;
+
+		if( quantized != null ) {
+			for( int w=0 ; w<store.words() ; w++ ) {
+				for( long bits=spikes[offset+w] ; bits!=0 ; bits &= bits-1 ) {
+					int col = (w<<6) + Long.numberOfTrailingZeros( bits ) ;
+					quantized.gather( col, store.getSpikeValue(col), currents, from, to ) ;
+				}
+			}
+			return ;
+		}
 
-        return rc.getData() ;
+		final IntBuffer colIdx = synapses.colIdx() ;
+		final IntBuffer nzRows = synapses.rows() ;
+		final FloatBuffer nzValues = synapses.weights() ;
+
+		for( int w=0 ; w<store.words() ; w++ ) {
+			for( long bits=spikes[offset+w] ; bits!=0 ; bits &= bits-1 ) {
+				int col = (w<<6) + Long.numberOfTrailingZeros( bits ) ;
+				double v = store.getSpikeValue(col) ;
+				int idx1 = colIdx.get(col+1) ;
+				for( int i=synapses.lowerBound( colIdx.get(col), idx1, from ) ; i<idx1 ; i++ ) {
+					int r = nzRows.get(i) ;
+					if( r >= to ) {
+						break ;
+					}
+					currents[r] += nzValues.get(i) * v ;
+				}
+			}
+		}
 	}
 
 	
@@ -434,89 +795,138 @@ public class Brain  {
      *
 	 */
 	public void train( int y ) {
+		if( quantized != null ) {
+			throw new IllegalStateException( "Brain weights are frozen for inference, it can't be trained" ) ;
+		}
 
 		for( int i=0 ; i<this.outputNeurons.length ; i++ ) {
 			this.outputNeurons[i].setSupervisedFiring( i==y ) ;
 		}
 
-		for( int i=0 ; i<neurons.length; i++ ) {
-			neurons[i].train( this, training ) ;
+		if( traceStdp == null ) {
+			for( int i=0 ; i<neurons.length; i++ ) {
+				neurons[i].train( this, sources ) ;
+			}
+		} else {
+			traceStdp.train( this, store ) ;
+			for( int i=0 ; i<outputNeurons.length; i++ ) {
+				outputNeurons[i].train( this, sources ) ;
+			}
 		}
 		
 		epoch++ ;
 		if( epoch == EPOCH_LENGTH ) {
 			epoch = 0 ;
-			IGrowArray ig = new IGrowArray() ;
-			DGrowArray dg = new DGrowArray() ;
+			if( !onlineLearning ) {
+				applyTraining() ;
+			}
+		}
+		runningScore += getScore( y ) ;
+	}
 
-			CommonOps_DSCC.add( 1.0, synapses, 1.0, training, synapses, ig, dg ) ;
 
-			eachNonZero( (i,j,v) -> {
-				if( v>1.0 ) synapses.set(i, j, 1.0);
-				if( v<=0.0 ) synapses.set(i, j, 0.0);
-			});
+	/**
+	 * Add the pending weight changes to the synapses, then clear them.
+	 */
+	private void applyTraining() {
+		if( quantized != null ) {
+			return ;		// training was applied when the weights were frozen
+		}
+		if( log.isDebugEnabled() ) {
+			double sum = 0 ;
+			double max = 0 ;
+			for( int i=0 ; i<training.length ; i++ ) {
+				sum += training[i] ;
+				max = Math.max( max, training[i] ) ;
+			}
+			log.debug( "Train sum,max     {}, {}", sum, max ) ;
+		}
 
-			log.debug( "Train sum,max     {}, {}", CommonOps_DSCC.elementSum(training), CommonOps_DSCC.elementMax(training) ) ;
-			log.debug( "Synapse sum       {}", CommonOps_DSCC.elementSum(synapses) ) ;
+		// add, clamp and clear in one pass
+		final FloatBuffer values = synapses.weights() ;
+		for( int i=0 ; i<training.length ; i++ ) {
+			values.put( i, clampWeight( values.get(i) + training[i] ) ) ;
+			training[i] = 0.0 ;
+		}
 
-			training.zero();
-			synapses.sortIndices( new SortCoupledArray_F64() ) ;
-			synapses.shrinkArrays();
+		if( log.isDebugEnabled() ) {
+			log.debug( "Synapse sum       {}", synapses.sum() ) ;
 		}
-		runningScore += getScore( y ) ;
 	}
 
 
-	public Neuron[] getInputsTo( int id ) {
-	    Neuron rc[] = new Neuron[ numNeurons() ] ;
-
-	    int n = 0 ;
-	    for( int c=0 ; c<numNeurons() ; c++ ) {
-	        if( synapses.isAssigned( id, c ) ) {
-				rc[n] = neurons[c] ;
-				n++ ;
-            }
-        }
-	    return Arrays.copyOf( rc, n ) ;
-    }
+	private static float clampWeight( double v ) {
+		if( v>1.0 ) v = 1.0 ;
+		if( v<=0.0 ) v = 0.0 ;
+		return (float)v ;
+	}
 
-	public Neuron[] getOutputsFrom( int id ) {
-	    Neuron rc[] = new Neuron[ numNeurons() ] ;
 
-	    int n = 0 ;
-	    for( int r=0 ; r<numNeurons() ; r++ ) {
-	        if( synapses.isAssigned( r, id ) ) {
-				rc[n] = neurons[r] ;
-				n++ ;
-            }
-        }
+	/**
+	 * Find the synapses onto a given neuron. The cost is the number
+	 * of synapses found, nothing is allocated.
+	 *
+	 * @param id the target neuron
+	 * @param rc the list to fill with the source neurons and weights
+	 * @return the filled list
+	 */
+	public EdgeList getInputsTo( int id, EdgeList rc ) {
+		rc.set( synapses, synapses.rowCols(), synapses.rowSlots(), synapses.rowStart(id), synapses.rowEnd(id) ) ;
+		return rc ;
+	}
 
-	    return Arrays.copyOf( rc, n ) ;
-    }
+	/**
+	 * Find the synapses out of a given neuron. The cost is the number
+	 * of synapses found, nothing is allocated.
+	 *
+	 * @param id the source neuron
+	 * @param rc the list to fill with the target neurons and weights
+	 * @return the filled list
+	 */
+	public EdgeList getOutputsFrom( int id, EdgeList rc ) {
+		rc.set( synapses, synapses.rows(), null, synapses.colStart(id), synapses.colEnd(id) ) ;
+		return rc ;
+	}
 
 
     public void addWeight( int from, int to, double addition ) {
-	    if( !synapses.isAssigned( to, from ) ) {
+		int slot = synapses.slot( to, from ) ;
+	    if( slot < 0 ) {
 	        log.warn( "Warning editing non existant weight {} -> {}", from, to ) ;
         } else {
-	        double v = synapses.get( to, from ) + addition ;
+	        double v = synapses.weight( slot ) + addition ;
             if( v < 0.00 ) {
                 v = 0.00 ;
 //                log.debug( "Weight is 0: {} -> {}", from, to ) ;
             }
             if( v > 10.00 ) v = 10.00 ;
-	        synapses.set( to, from, v );
+	        synapses.setWeight( slot, (float)v );
         }
     }
 
 
     public void addTraining( int from, int to, double addition ) {
-		double v = training.get( to, from ) + addition ;
-		// if( v < 0.00 ) {
-		// 	v = 0.00 ;
-		// }
-		// if( v > 1.00 ) v = 1.00 ;
-		training.set( to, from, v );
+		int slot = synapses.slot( to, from ) ;
+		if( slot < 0 ) {
+	        log.warn( "Warning training non existant weight {} -> {}", from, to ) ;
+		} else {
+			addTraining( slot, addition ) ;
+		}
+    }
+
+	/**
+	 * Change a weight. Normally the change is queued and applied at
+	 * the end of the epoch, in online mode it is applied immediately.
+	 *
+	 * @param slot the position of the weight, @see EdgeList#slot
+	 * @param addition the change to the weight
+	 */
+    public void addTraining( int slot, double addition ) {
+		if( onlineLearning ) {
+			synapses.setWeight( slot, clampWeight( synapses.weight(slot) + addition ) ) ;
+		} else {
+			training[slot] += addition ;
+		}
     }
 
 	/**
@@ -527,17 +937,17 @@ public class Brain  {
 		Neuron following = getNeuron( followingId ) ;
 		if( following != null ) {
 			outputHistory[historyIndex] = following.getPotential() ;
-			outputSpikeHistory[historyIndex] = following.isSpiking() ;
+			if( following.isSpiking() ) {
+				outputSpikeHistory[historyIndex>>>6] |= 1L << historyIndex ;
+			} else {
+				outputSpikeHistory[historyIndex>>>6] &= ~( 1L << historyIndex ) ;
+			}
 		}
 		
 		historyIndex++ ;
 		if( historyIndex >= outputHistory.length ) {
 			historyIndex = 0 ;
 		}
-		
-		for( int i=0 ; i<neurons.length ; i++ ) {
-			neurons[i].updateFrequency( clock ) ;
-		}
 	}
 
 
@@ -550,8 +960,9 @@ public class Brain  {
 	    double rc = outputNeurons.length  ;
 
 		for( int i=0 ; i<outputNeurons.length ; i++ ) {
-			outputNeurons[i].updateFrequency( clock ) ;
-			log.debug( "O/P[{}] => {} Hz", i, outputNeurons[i].frequency() ) ; 
+			if( log.isDebugEnabled() ) {
+				log.debug( "O/P[{}] => {} Hz", i, outputNeurons[i].frequency() ) ; 
+			}
 		    if( i==y ) {
                 rc += outputNeurons[i].frequency() * 100.0 ;
             } else {
@@ -572,7 +983,10 @@ public class Brain  {
 
 	public void resetNeurons() {
 		for( int i=0 ; i<neurons.length ; i++ ) {
-			neurons[i].reset() ;
+			store.reset( i ) ;
+		}
+		if( traceStdp != null ) {
+			traceStdp.reset() ;
 		}
 	}
 
@@ -594,7 +1008,7 @@ public class Brain  {
 			double tmp[] = new double[ outputHistory.length ] ;
 			if( this.fftSpike ) {
 				for( int i=0 ; i<tmp.length ; i++ ) {
-					tmp[i] = outputSpikeHistory[i] ? 100 : 0 ;
+					tmp[i] = spikedAt(i) ? 100 : 0 ;
 				}
 			} else {	
 				System.arraycopy( outputHistory, 0, tmp, 0, tmp.length ) ;
@@ -608,7 +1022,7 @@ public class Brain  {
 				}
 				int ix = outputHistory.length-offset-1 ;
 				rc.history[i] =  tmp[i] ;
-				rc.spikeHistory[ix] = outputSpikeHistory[i] ;
+				rc.spikeHistory[ix] = spikedAt(i) ;
 				if( mn>-300) mn = Math.min( mn, tmp[i] ) ;
                 if( mn<300) mx = Math.max( mx, tmp[i] ) ;
 			}
@@ -620,7 +1034,7 @@ public class Brain  {
 				}
 				int ix = outputHistory.length-offset-1 ;
 				rc.history[ix] = outputHistory[i]  ;
-				rc.spikeHistory[ix] = outputSpikeHistory[i] ;
+				rc.spikeHistory[ix] = spikedAt(i) ;
                 mn = Math.min( mn, outputHistory[i] ) ;
                 mx = Math.max( mx, outputHistory[i] ) ;
 			}
@@ -649,6 +1063,37 @@ public class Brain  {
 	}
 
 
+	/**
+	 * Record the potential history of a neuron, for display. 
+	 * Only traced neurons pay for a history.
+	 */
+	public void trace( int id ) {
+		store.trace( id ) ;
+	}
+
+	public void untrace( int id ) {
+		store.untrace( id ) ;
+	}
+
+	/**
+	 * Trace all the input and output neurons, these are the 
+	 * histories sent by @see #getNeuronPotentials
+	 */
+	public void traceInputsAndOutputs() {
+		for( int i=0 ; i<inputNeurons.length ; i++ ) {
+			store.trace( inputNeurons[i].getId() ) ;
+		}
+		for( int i=0 ; i<outputNeurons.length ; i++ ) {
+			store.trace( outputNeurons[i].getId() ) ;
+		}
+	}
+
+
+	private boolean spikedAt( int historyIndex ) {
+		return ( outputSpikeHistory[historyIndex>>>6] & (1L << historyIndex) ) != 0 ;
+	}
+
+
 	public Object toJson() {
 
 	    Nodes rc = new Nodes() ;
@@ -685,14 +1130,17 @@ public class Brain  {
 
 
 
+	/**
+	 * Write the brain, with the current state of its neurons, as a 
+	 * @see BrainImage. Pending training is not included.
+	 */
 	public boolean save( String fileName ) {
 		boolean rc = false ;
 		log.info( "Saving to {}", fileName ) ;
 
-		try ( OutputStream os = new FileOutputStream( fileName ) ;
-				ObjectOutputStream oos = new ObjectOutputStream(os) )  {
-			Genome g = toGenome() ;			
-			oos.writeObject( g ) ;
+		try {
+			BrainImage.write( fileName, numRows, numColumns, connectionProbability, clock, neurons, store, synapses ) ;
+			rc = true ;
 		} catch( IOException ioe ) {
 			rc = false ;
 			log.warn( "Failed saving brain to {}", ioe.getMessage() );
@@ -701,9 +1149,68 @@ public class Brain  {
 	}
 
 
+	/**
+	 * Copy everything that changes as the brain runs, other than the
+	 * weights: the clock, the neurons, the pending training, the
+	 * progress through the training epoch &amp; the STDP traces. A brain
+	 * with the same neurons &amp; weights carries on exactly from here
+	 * after @see #restoreState
+	 */
+	byte[] saveState() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream() ;
+		try( DataOutputStream out = new DataOutputStream( bos ) ) {
+			out.writeDouble( clock ) ;
+			out.writeInt( epoch ) ;
+			store.writeState( out ) ;
+			out.writeInt( training.length ) ;
+			for( double t : training ) {
+				out.writeDouble( t ) ;
+			}
+			out.writeBoolean( traceStdp != null ) ;
+			if( traceStdp != null ) {
+				traceStdp.writeState( out ) ;
+			}
+		}
+		return bos.toByteArray() ;
+	}
+
+
+	/**
+	 * Put back the state copied by @see #saveState
+	 */
+	void restoreState( byte state[] ) throws IOException {
+		try( DataInputStream in = new DataInputStream( new ByteArrayInputStream( state ) ) ) {
+			clock = in.readDouble() ;
+			epoch = in.readInt() ;
+			store.readState( in ) ;
+			int n = in.readInt() ;
+			if( n != training.length ) {
+				throw new IOException( "Training is for " + n + " synapses, not " + training.length ) ;
+			}
+			for( int i=0 ; i<n ; i++ ) {
+				training[i] = in.readDouble() ;
+			}
+			setTraceStdp( in.readBoolean() ) ;
+			if( traceStdp != null ) {
+				traceStdp.readState( in ) ;
+			}
+		}
+	}
+
+
 	public static Brain load( double tick, String fileName ) {
 		Brain rc = null ;
 		log.info( "Loading from {}", fileName ) ;
+		if( BrainImage.isImage( fileName ) ) {
+			try {
+				rc = new Brain( tick, BrainImage.open( fileName ) ) ;
+			} catch( IOException ioe ) {
+				rc = null ;
+				log.warn( "Failed loading brain from {}", ioe.getMessage() );
+			}
+			return rc ;
+		}
+		// older files hold a serialized genome
 		try ( InputStream is = new FileInputStream( fileName ) ;
 				ObjectInputStream ois = new ObjectInputStream(is) )  {
 			Genome g = (Genome)ois.readObject() ;
@@ -749,8 +1256,10 @@ public class Brain  {
 				log.info( "Path: {}", path ) ;
                 return true ;
             }
-            for( int i=0 ; i<neurons.length ; i++ ) {
-                if( synapses.isAssigned( n, i ) && !visited.contains(i) ) {
+            EdgeList inputs = getInputsTo( n, new EdgeList() ) ;
+            for( int j=0 ; j<inputs.size() ; j++ ) {
+                int i = inputs.id( j ) ;
+                if( !visited.contains(i) ) {
                     queue.add( i ) ;
 					visited.add( i ) ;
 					route[i] = n ;
@@ -776,13 +1285,13 @@ public class Brain  {
 			Neuron n = getNeuron( following ) ;
 			if( n != null ) {
 				log.info( "Following: {}", n ) ;
-				Neuron sources[] = getInputsTo( following ) ;
-				for( Neuron src : sources ) {
-					log.info( "Weight from {} is {}", src.getId(), synapses.get(following, src.getId() ) ) ;
+				EdgeList inputs = getInputsTo( following, new EdgeList() ) ;
+				for( int i=0 ; i<inputs.size() ; i++ ) {
+					log.info( "Weight from {} is {}", inputs.id(i), inputs.weight(i) ) ;
 				}
 			}
 			Arrays.fill( outputHistory, 0 ) ;
-			Arrays.fill( outputSpikeHistory, false ) ;
+			Arrays.fill( outputSpikeHistory, 0L ) ;
             routeToAnyInput(following);
  		}
 
@@ -800,7 +1309,7 @@ public class Brain  {
     public int numNeurons() {
         return neurons.length ;
     }
-    public DMatrixSparseCSC getSynapses() {
+    public Synapses getSynapses() {
         return synapses ;
     }
 
@@ -822,26 +1331,185 @@ public class Brain  {
 		return tickPeriod;
 	}
 
+	public int getThreads() {
+		return pool == null ? 1 : pool.getParallelism() ;
+	}
+
+	/**
+	 * Step the neurons on a fork/join pool. The neurons are split into
+	 * contiguous blocks, each block gathers its input and integrates its
+	 * own neurons. The result is identical to a single threaded step.
+	 *
+	 * @param threads the number of threads to use, 1 ( or less ) steps on
+	 * 		the calling thread
+	 */
+	public void setThreads( int threads ) {
+		if( threads == getThreads() || ( threads <= 1 && pool == null ) ) {
+			return ;
+		}
+		if( pool != null ) {
+			pool.shutdown() ;
+			pool = null ;
+			stepBlocks = null ;
+		}
+		if( threads > 1 ) {
+			pool = new ForkJoinPool( threads ) ;
+			stepBlocks = new StepBlocks( threads * 4 ) ;
+		}
+	}
+
+	public double getRateTau() {
+		return store.getRateTau() ;
+	}
 
-	public void eachNonZero( MatrixVisitor visitor ) {
-        for(int col = 0; col < synapses.numCols; ++col) {
-            int idx0 = synapses.col_idx[col];
-            int idx1 = synapses.col_idx[col + 1];
+	/**
+	 * @param rateTau the time constant, in mS, of the moving average 
+	 * 		used for each neuron's frequency
+	 */
+	public void setRateTau( double rateTau ) {
+		store.setRateTau( rateTau ) ;
+	}
 
-            for(int i = idx0; i < idx1; ++i) {
-                int row = synapses.nz_rows[i];
-                double value = synapses.nz_values[i];
+	public boolean isOnlineLearning() {
+		return onlineLearning ;
+	}
 
-                visitor.apply( row, col, value ) ;
-            }
-        }
-    }
+	/**
+	 * Choose when training changes the weights. Online learning has no 
+	 * batch merge every EPOCH_LENGTH ticks, so each tick takes about 
+	 * the same time.
+	 *
+	 * @param onlineLearning true to change weights as soon as training 
+	 * 		calculates them, false to batch them up for an epoch
+	 */
+	public void setOnlineLearning( boolean onlineLearning ) {
+		if( onlineLearning && !this.onlineLearning ) {
+			applyTraining() ;		// don't lose anything pending
+		}
+		this.onlineLearning = onlineLearning ;
+	}
 
+	public boolean isTraceStdp() {
+		return traceStdp != null ;
+	}
 
-    @FunctionalInterface
-    public interface MatrixVisitor {
-        void apply( int r, int c, double v ) ;
-    }
+	/**
+	 * Choose the learning rule for the liquid. Trace based STDP only 
+	 * visits the synapses of neurons that spiked, so costs about the 
+	 * same as spike propagation. Pairwise STDP compares the last spike
+	 * time of every source whenever a neuron spikes. Outputs are always 
+	 * trained by their supervised rule.
+	 *
+	 * @param traceStdp true for trace based, false for pairwise 
+	 */
+	public void setTraceStdp( boolean traceStdp ) {
+		if( traceStdp != isTraceStdp() ) {
+			this.traceStdp = traceStdp ? new TraceStdp( neurons, tickPeriod ) : null ;
+		}
+	}
+
+	public boolean isQuantized() {
+		return quantized != null ;
+	}
+
+	/**
+	 * Freeze the weights for inference, as 8 or 16 bit fixed point 
+	 * with a scale per source neuron. The float weights are dropped,
+	 * so unfreezing gives back the frozen weights as floats, not the
+	 * weights from before. A frozen brain can't be trained.
+	 *
+	 * @param bits 8 or 16 to freeze, 0 to unfreeze
+	 */
+	public void setQuantized( int bits ) {
+		if( bits == 0 ) {
+			synapses.thaw() ;
+			quantized = null ;
+		} else {
+			if( !onlineLearning ) {
+				applyTraining() ;
+			}
+			quantized = synapses.freeze( bits ) ;
+		}
+	}
+
+	public boolean isEventDriven() {
+		return eventDriven ;
+	}
+
+	/**
+	 * Choose how spikes are sent across synapses each tick
+	 * 
+	 * @param eventDriven true to visit only spiking neurons, false 
+	 * 		for a full sparse matrix multiply
+	 */
+	public void setEventDriven( boolean eventDriven ) {
+		this.eventDriven = eventDriven ;
+	}
+
+
+	/**
+	 * The tasks for a parallel step, one per contiguous block of neurons.
+	 * They are reused every tick, so the step creates no garbage. Blocks
+	 * start on a multiple of 64 neurons, so no two blocks write the
+	 * same word of the spike bitset.
+	 */
+	private class StepBlocks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final static int GATHER = 0 ;
+		final static int INTEGRATE = 1 ;
+
+		private final Block blocks[] ;
+		private int phase ;
+		private double potentials[] ;
+
+		StepBlocks( int numBlocks ) {
+			int words = store.words() ;
+			numBlocks = Math.max( 1, Math.min( numBlocks, words ) ) ;
+			blocks = new Block[ numBlocks ] ;
+			for( int i=0 ; i<numBlocks ; i++ ) {
+				blocks[i] = new Block( 
+						Math.min( neurons.length, (int)( (long)words * i / numBlocks ) << 6 ), 
+						Math.min( neurons.length, (int)( (long)words * (i+1) / numBlocks ) << 6 ) ) ;
+			}
+		}
+
+		void run( int phase, double potentials[] ) {
+			this.phase = phase ;
+			this.potentials = potentials ;
+			reinitialize() ;
+			pool.invoke( this ) ;
+		}
+
+		@Override
+		protected void compute() {
+			for( Block b : blocks ) {
+				b.reinitialize() ;
+			}
+			invokeAll( blocks ) ;
+		}
+
+		private class Block extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			private final int from ;
+			private final int to ;
+
+			Block( int from, int to ) {
+				this.from = from ;
+				this.to = to ;
+			}
+
+			@Override
+			protected void compute() {
+				if( phase == GATHER ) {
+					gatherSpikes( from, to ) ;
+				} else {
+					store.step( potentials, from, to, clock ) ;
+				}
+			}
+		}
+	}
 }
 
 
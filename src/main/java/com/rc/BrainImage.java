@@ -0,0 +1,233 @@
+package com.rc ;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import com.rc.neurons.Neuron;
+import com.rc.neurons.NeuronStore;
+import com.rc.neurons.NeuronType;
+
+/**
+ * A brain laid out flat in a file, so it can be memory mapped back in
+ * without any parsing. The synapse sections are the column view of
+ * @see Synapses, a reopened brain reads them in place, so its synapses
+ * don't take any heap. The weights are mapped copy on write, training
+ * changes pages in memory not the file, until the brain is saved.
+ *
+ *	header		magic, version, rows, cols, nnz, connectionProbability, clock
+ *	types		int per neuron
+ *	state		potential & u, double per neuron
+ *	spikes		the latest tick's spike bitset, long per 64 neurons
+ *	col_idx		int per neuron + 1
+ *	nz_rows		int per synapse
+ *	weights		float per synapse
+ *
+ * The header is big endian, the sections are little endian, so the hot
+ * loops read them without swapping bytes on common hardware. Each section
+ * is mapped on its own, a single mapping is limited to 2GB, e.g.
+ * 500 million synapses.
+ */
+class BrainImage {
+
+	private final static int MAGIC = 0x4c534d31 ;		// LSM1
+	private final static int VERSION = 3 ;
+	private final static int HEADER_BYTES = 64 ;
+
+	final int rows ;
+	final int cols ;
+	final int nnz ;
+	final double connectionProbability ;
+	final double clock ;
+
+	private final IntBuffer types ;
+	private final DoubleBuffer state ;
+	private final LongBuffer spikes ;
+	private final IntBuffer colIdx ;
+	private final IntBuffer nzRows ;
+	private final FloatBuffer values ;
+
+
+	private BrainImage( FileChannel fc, boolean writable ) throws IOException {
+		ByteBuffer header = fc.map( MapMode.READ_ONLY, 0, HEADER_BYTES ) ;
+		if( header.getInt() != MAGIC ) {
+			throw new IOException( "Not a brain image" ) ;
+		}
+		int version = header.getInt() ;
+		if( version != VERSION ) {
+			throw new IOException( "Unsupported brain image version " + version ) ;
+		}
+		this.rows = header.getInt() ;
+		this.cols = header.getInt() ;
+		this.nnz = header.getInt() ;
+		header.getInt() ;
+		this.connectionProbability = header.getDouble() ;
+		this.clock = header.getDouble() ;
+
+		Layout l = new Layout( rows * cols, nnz ) ;
+		this.types = map( fc, MapMode.READ_ONLY, l.types, l.state ).asIntBuffer() ;
+		this.state = map( fc, MapMode.READ_ONLY, l.state, l.spikes ).asDoubleBuffer() ;
+		this.spikes = map( fc, MapMode.READ_ONLY, l.spikes, l.colIdx ).asLongBuffer() ;
+		this.colIdx = map( fc, MapMode.READ_ONLY, l.colIdx, l.nzRows ).asIntBuffer() ;
+		this.nzRows = map( fc, MapMode.READ_ONLY, l.nzRows, l.values ).asIntBuffer() ;
+		if( writable ) {
+			this.values = map( fc, MapMode.PRIVATE, l.values, l.end ).asFloatBuffer() ;
+		} else {
+			// copy on write needs a writable file, so the weights come onto the heap
+			FloatBuffer mapped = map( fc, MapMode.READ_ONLY, l.values, l.end ).asFloatBuffer() ;
+			this.values = FloatBuffer.allocate( nnz ).put( mapped ) ;
+		}
+	}
+
+
+	/**
+	 * Map an image file, the mappings stay valid after the file is closed.
+	 * The file is opened for writing, to map the weights copy on write,
+	 * but it isn't changed.
+	 */
+	static BrainImage open( String fileName ) throws IOException {
+		boolean writable = Files.isWritable( Paths.get( fileName ) ) ;
+		try( RandomAccessFile raf = new RandomAccessFile( fileName, writable ? "rw" : "r" ) ;
+				FileChannel fc = raf.getChannel() ) {
+			return new BrainImage( fc, writable ) ;
+		}
+	}
+
+
+	/**
+	 * @return whether the file starts with the image magic number
+	 */
+	static boolean isImage( String fileName ) {
+		try( RandomAccessFile raf = new RandomAccessFile( fileName, "r" ) ) {
+			return raf.length() >= HEADER_BYTES && raf.readInt() == MAGIC ;
+		} catch( IOException e ) {
+			return false ;
+		}
+	}
+
+
+	/**
+	 * Write a brain to a temporary file, then rename it over the old
+	 * one. The old file may still be mapped, e.g. by the brain being
+	 * saved, its mappings keep reading the old file until they're gone.
+	 */
+	static void write( String fileName, int rows, int cols, double connectionProbability, double clock,
+						Neuron neurons[], NeuronStore store, Synapses synapses ) throws IOException {
+		int n = neurons.length ;
+		int nnz = synapses.nnz() ;
+		Layout l = new Layout( n, nnz ) ;
+		Path path = Paths.get( fileName ).toAbsolutePath() ;
+		Path tmp = path.resolveSibling( path.getFileName() + ".tmp" ) ;
+
+		try( RandomAccessFile raf = new RandomAccessFile( tmp.toFile(), "rw" ) ;
+				FileChannel fc = raf.getChannel() ) {
+			raf.setLength( l.end ) ;
+
+			ByteBuffer header = fc.map( MapMode.READ_WRITE, 0, HEADER_BYTES ) ;
+			header.putInt( MAGIC ).putInt( VERSION ) ;
+			header.putInt( rows ).putInt( cols ).putInt( nnz ).putInt( 0 ) ;
+			header.putDouble( connectionProbability ).putDouble( clock ) ;
+
+			IntBuffer types = map( fc, MapMode.READ_WRITE, l.types, l.state ).asIntBuffer() ;
+			for( int i=0 ; i<n ; i++ ) {
+				types.put( neurons[i].getType().ordinal() ) ;
+			}
+			DoubleBuffer state = map( fc, MapMode.READ_WRITE, l.state, l.spikes ).asDoubleBuffer() ;
+			for( int i=0 ; i<n ; i++ ) {
+				state.put( store.getPotential(i) ).put( store.getRecovery(i) ) ;
+			}
+			long spikes[] = new long[ store.words() ] ;
+			store.copySpikes( 0, spikes, 0 ) ;
+			map( fc, MapMode.READ_WRITE, l.spikes, l.colIdx ).asLongBuffer().put( spikes ) ;
+			map( fc, MapMode.READ_WRITE, l.colIdx, l.nzRows ).asIntBuffer().put( section( synapses.colIdx(), n+1 ) ) ;
+			map( fc, MapMode.READ_WRITE, l.nzRows, l.values ).asIntBuffer().put( section( synapses.rows(), nnz ) ) ;
+			FloatBuffer weights = synapses.isFrozen() ? FloatBuffer.wrap( synapses.copyWeights() ) : section( synapses.weights(), nnz ) ;
+			map( fc, MapMode.READ_WRITE, l.values, l.end ).asFloatBuffer().put( weights ) ;
+			fc.force( true ) ;
+		}
+		Files.move( tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING ) ;
+	}
+
+
+	private static ByteBuffer map( FileChannel fc, MapMode mode, long from, long to ) throws IOException {
+		if( to - from > Integer.MAX_VALUE ) {
+			throw new IOException( "Brain image section is too large to map: " + ( to - from ) + " bytes" ) ;
+		}
+		return fc.map( mode, from, to - from ).order( ByteOrder.LITTLE_ENDIAN ) ;
+	}
+
+
+	/**
+	 * @return the first n entries of a buffer, ready for a bulk put
+	 */
+	private static IntBuffer section( IntBuffer b, int n ) {
+		return (IntBuffer)b.duplicate().limit( n ).rewind() ;
+	}
+
+	private static FloatBuffer section( FloatBuffer b, int n ) {
+		return (FloatBuffer)b.duplicate().limit( n ).rewind() ;
+	}
+
+
+	NeuronType type( int i ) {
+		return NeuronType.fromOrdinal( types.get(i) ) ;
+	}
+
+
+	/**
+	 * Restore the transient state of every neuron
+	 */
+	void restoreState( NeuronStore store ) {
+		for( int i=0 ; i<store.size() ; i++ ) {
+			boolean spiking = ( spikes.get( i>>>6 ) & (1L << i) ) != 0 ;
+			store.setState( i, state.get( 2*i ), state.get( 2*i+1 ), spiking ) ;
+		}
+	}
+
+
+	/**
+	 * @return synapses that read the mapped sections in place
+	 */
+	Synapses synapses() {
+		return new Synapses( rows * cols, colIdx, nzRows, values ) ;
+	}
+
+
+	/**
+	 * Byte offsets of each section, doubles and longs are kept 8 byte aligned
+	 */
+	private static class Layout {
+		final long types ;
+		final long state ;
+		final long spikes ;
+		final long colIdx ;
+		final long nzRows ;
+		final long values ;
+		final long end ;
+
+		Layout( int n, int nnz ) {
+			types = HEADER_BYTES ;
+			state = align( types + 4L * n ) ;
+			spikes = state + 16L * n ;
+			colIdx = spikes + 8L * ( ( n + 63 ) >>> 6 ) ;
+			nzRows = colIdx + 4L * ( n + 1 ) ;
+			values = nzRows + 4L * nnz ;
+			end = values + 4L * nnz ;
+		}
+
+		private static long align( long offset ) {
+			return ( offset + 7 ) & ~7L ;
+		}
+	}
+}
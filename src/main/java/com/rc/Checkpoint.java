@@ -0,0 +1,196 @@
+package com.rc ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of an evolving population, so a run can be resumed.
+ *
+ *	header		magic, version, next epoch, offers, rng seed, population
+ *	member		score, raced out, has key, key, genome, weight count, weights, state length, state
+ *	cache		has cache, entry count, ( key, score, raced out ) * count
+ *	trailer		CRC32 of everything before it
+ *
+ * Genomes hold 10 bit weights, so a brain's own float weights are
+ * kept too, with the rest of its state @see Brain#saveState, so a
+ * resumed run carries on exactly. Both are -1 if the brain hasn't
+ * been built. The fitness cache is kept least recently used first.
+ * Steady state evolution has no epochs, it counts its children in
+ * epochs of population / 2, the offers are the children already
+ * made of the next epoch.
+ * A checkpoint is written to a temporary file then renamed over the
+ * old one, then the directory is synced, so a crash leaves either
+ * the old or the new checkpoint.
+ */
+class Checkpoint {
+
+	private final static int MAGIC = 0x45564f31 ;		// EVO1
+	private final static int VERSION = 4 ;
+
+	final int epoch ;
+	final int offers ;
+	final long rngSeed ;
+	final Member members[] ;
+	final FitnessCache cache ;		// null if scores weren't cached
+
+
+	Checkpoint( int epoch, long rngSeed, Member members[], FitnessCache cache ) {
+		this( epoch, 0, rngSeed, members, cache ) ;
+	}
+
+
+	Checkpoint( int epoch, int offers, long rngSeed, Member members[], FitnessCache cache ) {
+		this.epoch = epoch ;
+		this.offers = offers ;
+		this.rngSeed = rngSeed ;
+		this.members = members ;
+		this.cache = cache ;
+	}
+
+
+	void write( String fileName ) throws IOException {
+		Path path = Paths.get( fileName ).toAbsolutePath() ;
+		Path tmp = path.resolveSibling( path.getFileName() + ".tmp" ) ;
+
+		try( FileOutputStream fos = new FileOutputStream( tmp.toFile() ) ) {
+			CheckedOutputStream cos = new CheckedOutputStream( new BufferedOutputStream( fos ), new CRC32() ) ;
+			DataOutputStream out = new DataOutputStream( cos ) ;
+			out.writeInt( MAGIC ) ;
+			out.writeInt( VERSION ) ;
+			out.writeInt( epoch ) ;
+			out.writeInt( offers ) ;
+			out.writeLong( rngSeed ) ;
+			out.writeInt( members.length ) ;
+			for( Member m : members ) {
+				out.writeDouble( m.score ) ;
+				out.writeBoolean( m.racedOut ) ;
+				out.writeBoolean( m.hasKey ) ;
+				out.writeLong( m.key ) ;
+				m.genome.write( out ) ;
+				out.writeInt( m.weights == null ? -1 : m.weights.length ) ;
+				if( m.weights != null ) {
+					for( float w : m.weights ) {
+						out.writeFloat( w ) ;
+					}
+				}
+				out.writeInt( m.state == null ? -1 : m.state.length ) ;
+				if( m.state != null ) {
+					out.write( m.state ) ;
+				}
+			}
+			out.writeBoolean( cache != null ) ;
+			if( cache != null ) {
+				cache.write( out ) ;
+			}
+			out.flush() ;
+			new DataOutputStream( fos ).writeLong( cos.getChecksum().getValue() ) ;
+			fos.getFD().sync() ;
+		}
+		Files.move( tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING ) ;
+
+		// the rename is only durable once the directory is synced too
+		try( FileChannel dir = FileChannel.open( path.getParent(), StandardOpenOption.READ ) ) {
+			dir.force( true ) ;
+		} catch( IOException ignored ) {
+			// some platforms can't open a directory, e.g. Windows, the rename is all they offer
+		}
+	}
+
+
+	static Checkpoint read( String fileName ) throws IOException {
+		try( DataInputStream file = new DataInputStream( new BufferedInputStream( new FileInputStream( fileName ) ) ) ) {
+			CheckedInputStream cis = new CheckedInputStream( file, new CRC32() ) ;
+			DataInputStream in = new DataInputStream( cis ) ;
+			int epoch = readHeader( in, fileName ) ;
+			int offers = in.readInt() ;
+			long rngSeed = in.readLong() ;
+			Member members[] = new Member[ in.readInt() ] ;
+			for( int i=0 ; i<members.length ; i++ ) {
+				double score = in.readDouble() ;
+				boolean racedOut = in.readBoolean() ;
+				boolean hasKey = in.readBoolean() ;
+				long key = in.readLong() ;
+				Genome genome = Genome.read( in ) ;
+				int n = in.readInt() ;
+				float weights[] = n < 0 ? null : new float[ n ] ;
+				for( int j=0 ; j<n ; j++ ) {
+					weights[j] = in.readFloat() ;
+				}
+				n = in.readInt() ;
+				byte state[] = n < 0 ? null : new byte[ n ] ;
+				if( state != null ) {
+					in.readFully( state ) ;
+				}
+				members[i] = new Member( score, racedOut, hasKey, key, genome, weights, state ) ;
+			}
+			FitnessCache cache = in.readBoolean() ? FitnessCache.read( in ) : null ;
+			long crc = cis.getChecksum().getValue() ;
+			if( file.readLong() != crc ) {
+				throw new IOException( "Corrupt checkpoint " + fileName ) ;
+			}
+			return new Checkpoint( epoch, offers, rngSeed, members, cache ) ;
+		}
+	}
+
+
+	/**
+	 * @return the next epoch of a checkpoint, without reading its population
+	 */
+	static int readEpoch( String fileName ) throws IOException {
+		try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( fileName ) ) ) ) {
+			return readHeader( in, fileName ) ;
+		}
+	}
+
+
+	/**
+	 * Check the magic &amp; version
+	 *
+	 * @return the next epoch
+	 */
+	private static int readHeader( DataInputStream in, String fileName ) throws IOException {
+		if( in.readInt() != MAGIC ) {
+			throw new IOException( "Not an evolution checkpoint " + fileName ) ;
+		}
+		int version = in.readInt() ;
+		if( version != VERSION ) {
+			throw new IOException( "Unsupported checkpoint version " + version ) ;
+		}
+		return in.readInt() ;
+	}
+
+
+	static class Member {
+		final double score ;
+		final boolean racedOut ;
+		final boolean hasKey ;
+		final long key ;
+		final Genome genome ;
+		final float weights[] ;		// null if the genome's weights are enough
+		final byte state[] ;		// null if the brain starts fresh from the genome
+
+		Member( double score, boolean racedOut, boolean hasKey, long key, Genome genome, float weights[], byte state[] ) {
+			this.score = score ;
+			this.racedOut = racedOut ;
+			this.hasKey = hasKey ;
+			this.key = key ;
+			this.genome = genome ;
+			this.weights = weights ;
+			this.state = state ;
+		}
+	}
+}
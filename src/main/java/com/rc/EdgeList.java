@@ -0,0 +1,60 @@
+package com.rc ;
+
+import java.nio.IntBuffer;
+
+/**
+ * A view of the synapses into, or out of, one neuron. The list
+ * is a slice of the brain's synapse arrays, nothing is copied.
+ * An instance can be reused for any number of queries.
+ *
+ * @see Brain#getInputsTo(int, EdgeList)
+ * @see Brain#getOutputsFrom(int, EdgeList)
+ */
+public class EdgeList {
+
+	private IntBuffer ids ;
+	private IntBuffer slots ;			// null if ids are in the slot order
+	private Synapses synapses ;
+	private int start ;
+	private int end ;
+
+
+	void set( Synapses synapses, IntBuffer ids, IntBuffer slots, int start, int end ) {
+		this.synapses = synapses ;
+		this.ids = ids ;
+		this.slots = slots ;
+		this.start = start ;
+		this.end = end ;
+	}
+
+	/**
+	 * @return the number of synapses in the list
+	 */
+	public int size() {
+		return end - start ;
+	}
+
+	/**
+	 * @param i the index in the list 0 .. size()
+	 * @return the id of the neuron at the other end of the synapse
+	 */
+	public int id( int i ) {
+		return ids.get( start + i ) ;
+	}
+
+	/**
+	 * @param i the index in the list 0 .. size()
+	 * @return the position of the synapse in the brain's weight array
+	 */
+	public int slot( int i ) {
+		return slots == null ? start + i : slots.get( start + i ) ;
+	}
+
+	/**
+	 * @param i the index in the list 0 .. size()
+	 * @return the current weight of the synapse
+	 */
+	public double weight( int i ) {
+		return synapses.weight( slot(i) ) ;
+	}
+}
@@ -1,11 +1,21 @@
 package com.rc ;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
-import java.util.concurrent.CountDownLatch;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,7 +24,6 @@ import org.slf4j.LoggerFactory;
 public class Evolution { 
 	final static Logger log = LoggerFactory.getLogger( Evolution.class ) ;
 
-	final static Random rng = new Random( 660 );
 
 	final double clockTick ;
 	final double mutationRate ;
@@ -22,6 +31,24 @@ public class Evolution {
 	final int    population ;
 	final int 	 epochs ;
 	final int	 batchSize ;
+	final int	 threads ;
+	private SplittableRandom rng ;
+	private long rngSeed ;		// where rng started, it's reseeded each epoch so a checkpoint can restart it
+
+	private final static int MIN_RACE_ROUNDS = 3 ;		// rounds before a brain can be dropped
+	private double raceConfidence ;		// 0 runs every brain for the whole epoch
+	private int raceRounds ;
+	private int fitnessCacheSize ;		// 0 evaluates every brain every epoch
+	private Migration migration ;		// null for a lone population
+	private int migrationInterval ;
+	private int migrants ;
+	private double bestScore ;
+	private int offers ;
+	private int racedOut ;
+	private boolean steadyState ;
+	private String checkpointFile ;		// null for no checkpoints
+	private int checkpointInterval ;
+	private boolean resume ;
 
 	public Evolution( 
 			double  clockTick,
@@ -29,7 +56,9 @@ public class Evolution {
 			double  mutationRate ,
 			int 	epochs ,
 			int     population,
-            int     batchSize
+            int     batchSize,
+            int     threads,
+            long    seed
 			) {
 		this.clockTick = clockTick ;
 		this.mutationRate = mutationRate ;
@@ -37,76 +66,230 @@ public class Evolution {
 		this.simulations = simulations ;
 		this.population = population ;
 		this.batchSize = batchSize ;
+		this.threads = threads ;
+		this.rngSeed = seed ;
+		this.rng = new SplittableRandom( seed ) ;
+		this.raceConfidence = 0 ;
+		this.raceRounds = 1 ;
+		this.fitnessCacheSize = 0 ;
 	}	
 
 
-	public Brain evolve( double patterns[][], double tickPeriod, int numInputs, int numOutputs, int rows, int cols ) throws Exception {
-		log.info( "Evolution starts..." ) ;
+	/**
+	 * Remember the score of each genome, so it's never simulated twice.
+	 * Surviving brains keep their first score.
+	 *
+	 * @param entries the most scores to remember, 0 to not remember any
+	 */
+	public void setFitnessCache( int entries ) {
+		this.fitnessCacheSize = entries ;
+	}
 
-		BrainData brainData[] = new BrainData[ population ] ;
 
-		for( int i=0 ; i<brainData.length ; i++ ) {
-			Brain b = new Brain( tickPeriod, numInputs, numOutputs, rows, cols ) ;
-			brainData[i] = new BrainData( b ) ;
-		}
+	/**
+	 * Stop evaluating brains that are out of contention. 
+	 *
+	 * @param confidence how sure we must be that a brain would not survive, 0 to not race
+	 * @param rounds the number of times in an epoch to check the scores
+	 */
+	public void setRacing( double confidence, int rounds ) {
+		this.raceConfidence = confidence ;
+		this.raceRounds = Math.max( 1, rounds ) ;
+	}
+
+
+	/**
+	 * Exchange genomes with other populations every few epochs. 
+	 *
+	 * @param interval epochs between migrations
+	 * @param migrants how many of the best genomes leave each time
+	 * @param migration sends the emigrants and returns the immigrants
+	 */
+	public void setMigration( int interval, int migrants, Migration migration ) {
+		this.migrationInterval = Math.max( 1, interval ) ;
+		this.migrants = migrants ;
+		this.migration = migration ;
+	}
+
+
+	/**
+	 * @param steadyState replace members one at a time, rather than half the population each epoch
+	 */
+	public void setSteadyState( boolean steadyState ) {
+		this.steadyState = steadyState ;
+	}
+
+
+	/**
+	 * Save the population every few epochs, @see Checkpoint. The file
+	 * is written in the background while the next epoch runs.
+	 *
+	 * @param fileName where to save, null to not save
+	 * @param interval epochs between checkpoints
+	 * @param resume whether to start from the file, rather than a new population
+	 */
+	public void setCheckpoint( String fileName, int interval, boolean resume ) {
+		this.checkpointFile = fileName ;
+		this.checkpointInterval = Math.max( 1, interval ) ;
+		this.resume = resume ;
+	}
+
+
+	/**
+	 * @return the children offered to the population by a steady state @see #evolve
+	 */
+	public int getOffers() {
+		return offers ;
+	}
+
+
+	/**
+	 * @return the brains dropped early by racing, over every epoch of @see #evolve
+	 */
+	public int getRacedOut() {
+		return racedOut ;
+	}
+
+
+	/**
+	 * @return the epoch @see #evolve starts at, later than 0 when it resumes from a checkpoint
+	 */
+	public int firstEpoch() throws IOException {
+		return resuming() ? Checkpoint.readEpoch( checkpointFile ) : 0 ;
+	}
+
+
+	private boolean resuming() {
+		return resume && checkpointFile != null && Files.exists( Paths.get( checkpointFile ) ) ;
+	}
+
+
+	/**
+	 * @return the score of the brain returned by @see #evolve
+	 */
+	public double getBestScore() {
+		return bestScore ;
+	}
 
-		log.info( "Population created." ) ;
 
-		double inputs[] = new double[ numInputs ] ;
+	/**
+	 * Build an evolution from the command line options
+	 */
+	static Evolution fromOptions( long seed ) {
+		Evolution rc = new Evolution( Options.TICK_PERIOD, Options.SIMULATIONS, Options.MUTATION, Options.EPOCHS, Options.POPULATION, Options.BATCH_SIZE, Options.EVOLUTION_THREADS, seed ) ;
+		rc.setRacing( Options.RACE_CONFIDENCE, Options.RACE_ROUNDS ) ;
+		rc.setFitnessCache( Options.FITNESS_CACHE ) ;
+		rc.setSteadyState( Options.steadyState ) ;
+		rc.setCheckpoint( Options.CHECKPOINT, Options.CHECKPOINT_INTERVAL, Options.resume ) ;
+		return rc ;
+	}
 
-		ExecutorService tpool = Executors.newFixedThreadPool(7) ;
 
-		for( int e=0 ; e<epochs ; e++ ) {	// A3 = run each independent brain for 1 generation
+	public Brain evolve( double patterns[][], double tickPeriod, int numInputs, int numOutputs, int rows, int cols ) throws Exception {
+		log.info( "Evolution starts..." ) ;
 
+		BrainData brainData[] ;
+		int firstEpoch = 0 ;
+		Checkpoint restored = null ;
+
+		if( resuming() ) {
+			restored = Checkpoint.read( checkpointFile ) ;
+			firstEpoch = restored.epoch ;
+			rngSeed = restored.rngSeed ;
+			rng = new SplittableRandom( rngSeed ) ;
+			brainData = new BrainData[ restored.members.length ] ;
 			for( int i=0 ; i<brainData.length ; i++ ) {
-				brainData[i].resetScore(); 
-				brainData[i].brain.resetNeurons() ;
-			}
-
-			int p = 0 ;		// pattern to display
-			for( int simulation=0 ; simulation<simulations ; simulation++ ) {
-
-				// A1 = rotate through patterns
-				for( int i=0 ; i<patterns[p].length ; i++ ) {
-					inputs[i] = patterns[p][i] ;
-				}
-				p++ ;
-				if( p>=patterns.length ) {
-					p = 0 ;
-				}
-				// A1
-
-				// A2 = threads for 1 step & 1 train
-				final CountDownLatch cdl = new CountDownLatch( brainData.length ) ;
-				for( int i=0 ; i<brainData.length ; i++ ) {
-					final Brain brain = brainData[i].brain ;
-					final int testPattern = p ;
-					tpool.submit( () -> {
-						try {
-							for( int b=0 ; b<batchSize ; b++ ) {
-								brain.step(inputs);
-								brain.train(testPattern);
-							}
-						} catch (Throwable t) {
-							log.error("Failed to step", t);
-						} finally {
-							cdl.countDown();
-						}
-					}) ;
+				brainData[i] = new BrainData( restored.members[i] ) ;
+			}
+			log.info( "Resumed {} brains at epoch {} from {}", brainData.length, firstEpoch, checkpointFile ) ;
+		} else {
+			brainData = new BrainData[ population ] ;
+			for( int i=0 ; i<brainData.length ; i++ ) {
+				Brain b = new Brain( tickPeriod, numInputs, numOutputs, rows, cols, rng.nextLong() ) ;
+				brainData[i] = new BrainData( b ) ;
+			}
+			log.info( "Population created." ) ;
+		}
+
+		FitnessCache cache = fitnessCacheSize > 0 ? new FitnessCache( fitnessCacheSize ) : null ;
+		if( cache != null && restored != null ) {
+			if( restored.cache != null ) {
+				cache.putAll( restored.cache ) ;
+			} else {
+				for( Checkpoint.Member m : restored.members ) {
+					if( m.hasKey ) {
+						cache.put( m.key, m.score, m.racedOut ) ;
+					}
 				}
-				cdl.await();  // wait for all brains to complete one step and scoring
-				// A2
-			} // end of the simulations
+			}
+		}
 
-			for( int i=0 ; i<brainData.length ; i++ ) {
-				brainData[i].updateScore() ;
+		if( steadyState ) {
+			int done = restored == null ? 0 : restored.epoch * ( brainData.length / 2 ) + restored.offers ;
+			return evolveSteadyState( brainData, patterns, tickPeriod, done, cache ) ;
+		}
+
+		ForkJoinPool tpool = new ForkJoinPool( threads ) ;
+		long settings = settingsHash( patterns, tickPeriod ) ;
+		ExecutorService writer = checkpointFile == null ? null : Executors.newSingleThreadExecutor() ;
+		this.racedOut = 0 ;
+
+		for( int e=firstEpoch ; e<epochs ; e++ ) {	// A3 = run each independent brain for 1 generation
+
+			// A2 = each brain runs its whole epoch as one task, the only wait is for the slowest
+			// Genomes that have been evaluated before aren't run again
+			List<BrainData> unscored = new ArrayList<>( brainData.length ) ;
+			// cached brains still compete for a place when racing, with the scores they had
+			double cached[] = new double[ brainData.length ] ;
+			int numCached = 0 ;
+			for( BrainData bd : brainData ) {
+				bd.startEpoch() ;
+				FitnessCache.Fitness f = cache == null ? null : cache.get( bd.key( settings ) ) ;
+				if( f != null ) {
+					bd.score = f.score ;
+					bd.racedOut = f.racedOut ;
+					cached[ numCached++ ] = f.racedOut ? Double.NEGATIVE_INFINITY : f.score ;
+				} else {
+					unscored.add( bd ) ;
+				}
+			}
+			int racedOut = 0 ;
+			if( raceConfidence > 0 ) {
+				racedOut = race( unscored, Arrays.copyOf( cached, numCached ), patterns, tickPeriod, tpool, brainData.length - brainData.length / 2 ) ;
+				this.racedOut += racedOut ;
+			} else {
+				run( unscored, patterns, tickPeriod, tpool, simulations ) ;
 			}
+			if( cache != null ) {
+				for( BrainData bd : unscored ) {
+					cache.put( bd.key( settings ), bd.score, bd.racedOut ) ;
+				}
+				log.info( "Fitness cache hit {} of {} - rate {}", cache.hits(), cache.lookups(), cache.hitRate() ) ;
+			}
+			// A2
 
 			Arrays.sort( brainData ) ;
 			
 			// Euthanize the lower ( weakest scores ) half 
 			int numNewBrains = brainData.length / 2 ;
 
+			// Immigrants replace the weakest survivors, so they can breed now
+			if( migration != null && (e+1) % migrationInterval == 0 && e+1 < epochs ) {
+				int keep = brainData.length - numNewBrains ;
+				int k = Math.min( migrants, keep ) ;
+				Genome emigrants[] = new Genome[ k ] ;
+				double scores[] = new double[ k ] ;
+				for( int i=0 ; i<k ; i++ ) {
+					emigrants[i] = brainData[i].genome() ;
+					scores[i] = brainData[i].score ;
+				}
+				Genome immigrants[] = migration.migrate( emigrants, scores ) ;
+				for( int i=0 ; i<immigrants.length && i<keep-1 ; i++ ) {
+					brainData[ keep-1-i ] = new BrainData( immigrants[i] ) ;
+				}
+				log.info( "Epoch {} - {} emigrants, {} immigrants", e, k, immigrants.length ) ;
+			}
+
 			for( int i=0 ; i<numNewBrains ; i++ ) {
 				// Prefer smarter brains 
 				// if we can choose a high score ( from beginning of the sorted population )
@@ -116,13 +299,28 @@ public class Evolution {
 				Genome p1 = brainData[ ix1 ].genome() ; 
 				Genome p2 = brainData[ ix2 ].genome() ;
 
-				Genome child = new Genome( p1, p2, mutationRate, Options.FIXED_PARAMS ) ;
+				Genome child = new Genome( p1, p2, Options.CROSSOVER, mutationRate, rng, Brain.genomeHeader( p1 ) ) ;
+				child.mutateStructure( Options.STRUCTURE_MUTATION, rng ) ;
 				
-				brainData[brainData.length-i-1] = new BrainData( new Brain( tickPeriod, child ) ) ;
+				// the brain is built by its first epoch task
+				brainData[brainData.length-i-1] = new BrainData( child ) ;
 			}	
-			log.info( "Epoch {} - best score {}", e, brainData[0].score ) ;
+			log.info( "Epoch {} - best score {} - {} raced out", e, brainData[0].score, racedOut ) ;
+
+			// a fresh stream each epoch, its seed is all a checkpoint needs
+			rngSeed = rng.nextLong() ;
+			rng = new SplittableRandom( rngSeed ) ;
+
+			if( writer != null && ( (e+1) % checkpointInterval == 0 || e+1 == epochs ) ) {
+				checkpoint( writer, e+1, brainData, cache ) ;
+			}
 		} // A3 - all generations have been tested
 
+		if( writer != null ) {
+			writer.shutdown() ;
+			writer.awaitTermination( 10, TimeUnit.MINUTES ) ;
+		}
+
 		tpool.shutdown();
 		boolean oops = tpool.awaitTermination( 10, TimeUnit.MINUTES ) ;
 		if( !oops  ) {
@@ -130,38 +328,498 @@ public class Evolution {
 		}
 
 		BrainData bd =  brainData[0] ;
+		bestScore = bd.score ;
 		log.info( "Best score = {}", bd.score ) ;
-		return bd.brain ;
+		return bd.brain( tickPeriod ) ;
 	}	
 
 
+	/**
+	 * Evolve without generations. Each thread repeatedly breeds a child
+	 * from two members, evaluates it and offers it to the population,
+	 * where it replaces the worst member if it's better. Nothing waits
+	 * for anything else, so no core is idle while children are made.
+	 *
+	 * There are as many children as the generational evolution would
+	 * make. Races and migrations are generational, so they're not used.
+	 * A child whose genome is in the fitness cache takes its cached
+	 * score without being trained, it's still offered and counted.
+	 *
+	 * A checkpoint is written every interval's worth of children, the
+	 * population is copied with the number of children offered to it.
+	 *
+	 * @param done the children already offered, by a resumed run
+	 * @param cache the fitness cache, null to evaluate every child
+	 */
+	private Brain evolveSteadyState( BrainData initial[], double patterns[][], double tickPeriod, int done, FitnessCache cache ) throws Exception {
+		ForkJoinPool tpool = new ForkJoinPool( threads ) ;
+		long settings = settingsHash( patterns, tickPeriod ) ;
+		ExecutorService writer = checkpointFile == null ? null : Executors.newSingleThreadExecutor() ;
+		final int every = checkpointInterval * ( initial.length / 2 ) ;
+
+		for( BrainData bd : initial ) {
+			bd.startEpoch() ;
+		}
+		run( Arrays.asList( initial ), patterns, tickPeriod, tpool, simulations ) ;
+		for( BrainData bd : initial ) {
+			bd.keepGenome() ;
+			if( cache != null ) {
+				cache.put( bd.key( settings ), bd.score, false ) ;
+			}
+		}
+		RankedPopulation ranked = new RankedPopulation( initial, done ) ;
+
+		final int children = Math.max( 0, epochs * ( initial.length / 2 ) - done ) ;
+		AtomicInteger made = new AtomicInteger() ;
+		List<Callable<Void>> workers = new ArrayList<>( threads ) ;
+		for( int t=0 ; t<threads ; t++ ) {
+			SplittableRandom r = rng.split() ;
+			workers.add( () -> {
+				for( int n=made.getAndIncrement() ; n<children ; n=made.getAndIncrement() ) {
+					Genome p1 = ranked.select( r ).genome() ;
+					Genome p2 = ranked.select( r ).genome() ;
+					Genome g = new Genome( p1, p2, Options.CROSSOVER, mutationRate, r, Brain.genomeHeader( p1 ) ) ;
+					g.mutateStructure( Options.STRUCTURE_MUTATION, r ) ;
+					BrainData child = new BrainData( g ) ;
+					child.startEpoch() ;
+
+					FitnessCache.Fitness f = cache == null ? null : cache.get( child.key( settings ) ) ;
+					if( f != null ) {
+						child.score = f.score ;
+					} else {
+						child.runSimulations( patterns, tickPeriod, simulations ) ;
+						child.keepGenome() ;
+						if( cache != null ) {
+							cache.put( child.key( settings ), child.score, false ) ;
+						}
+					}
+					ranked.offer( child ) ;
+
+					if( (n+1) % initial.length == 0 ) {
+						log.info( "Child {} of {} - best score {}", n+1, children, ranked.best().score ) ;
+					}
+					if( writer != null && every > 0 && ( done+n+1 ) % every == 0 && n+1 < children ) {
+						checkpoint( writer, ranked, cache ) ;
+					}
+				}
+				return null ;
+			} ) ;
+		}
+		tpool.invokeAll( workers ) ;
+		offers = ranked.offers.get() - done ;
+		if( cache != null ) {
+			log.info( "Fitness cache hit {} of {} - rate {}", cache.hits(), cache.lookups(), cache.hitRate() ) ;
+		}
+		if( writer != null ) {
+			checkpoint( writer, ranked, cache ) ;
+			writer.shutdown() ;
+			writer.awaitTermination( 10, TimeUnit.MINUTES ) ;
+		}
+
+		tpool.shutdown();
+		boolean oops = tpool.awaitTermination( 10, TimeUnit.MINUTES ) ;
+		if( !oops  ) {
+			log.warn( "OMG - too late "); 
+		}
+
+		BrainData bd = ranked.best() ;
+		bestScore = bd.score ;
+		log.info( "Best score = {}", bd.score ) ;
+		return bd.brain( tickPeriod ) ;
+	}
+
+
+	/**
+	 * Copy the population, then write it in the background. The copy is
+	 * made now, the brains change as soon as the next epoch starts.
+	 */
+	private void checkpoint( ExecutorService writer, int nextEpoch, BrainData brainData[], FitnessCache cache ) throws IOException {
+		checkpoint( writer, nextEpoch, 0, rngSeed, brainData, cache ) ;
+	}
+
+
+	/**
+	 * Copy a steady state population, with the children offered to it.
+	 * Synchronized so the checkpoints are written in the order they're
+	 * taken. A resumed run can't repeat the workers' random streams, it
+	 * gets a fresh seed for the children it makes.
+	 */
+	private synchronized void checkpoint( ExecutorService writer, RankedPopulation ranked, FitnessCache cache ) throws IOException {
+		BrainData brainData[] = new BrainData[ ranked.size() ] ;
+		int offered = ranked.copy( brainData ) ;
+		int half = Math.max( 1, brainData.length / 2 ) ;
+		checkpoint( writer, offered / half, offered % half, Genome.mix64( rngSeed + offered ), brainData, cache ) ;
+	}
+
+
+	private void checkpoint( ExecutorService writer, int nextEpoch, int offered, long seed, BrainData brainData[], FitnessCache cache ) throws IOException {
+		Checkpoint.Member members[] = new Checkpoint.Member[ brainData.length ] ;
+		for( int i=0 ; i<brainData.length ; i++ ) {
+			members[i] = brainData[i].snapshot() ;
+		}
+		Checkpoint cp = new Checkpoint( nextEpoch, offered, seed, members, cache == null ? null : cache.copy() ) ;
+		writer.submit( () -> {
+			try {
+				cp.write( checkpointFile ) ;
+				log.info( "Checkpoint of epoch {} saved to {}", nextEpoch, checkpointFile ) ;
+			} catch( IOException ioe ) {
+				log.warn( "Failed to save checkpoint {}", ioe.getMessage() ) ;
+			}
+		} ) ;
+	}
+
+
+	/**
+	 * A hash of everything that changes a genome's score, other than the genome
+	 */
+	private long settingsHash( double patterns[][], double tickPeriod ) {
+		return Genome.mix64( Arrays.deepHashCode( patterns ) 
+				+ 31L * ( simulations + 31L * ( batchSize + 31L * ( raceRounds + 31L * 
+					( Double.doubleToLongBits( tickPeriod ) + 31L * Double.doubleToLongBits( raceConfidence ) ) ) ) ) ) ;
+	}
+
+
+	/**
+	 * Race the brains for an epoch's simulations. The epoch is run in
+	 * rounds, after each one a brain is dropped once it is confidently
+	 * outside the top few. The simulations it would have run are shared
+	 * among the survivors in the following rounds.
+	 *
+	 * @param cached the scores of the rest of the population, they aren't run
+	 * @param keep how many brains survive the epoch, out of the whole population
+	 * @return the number of brains dropped
+	 */
+	private int race( List<BrainData> brains, double cached[], double patterns[][], double tickPeriod, ForkJoinPool tpool, int keep ) {
+		double z = zScore( raceConfidence ) ;
+		List<BrainData> racing = new ArrayList<>( brains ) ;
+		long budget = (long)simulations * brains.size() ;
+
+		for( int round=0 ; round<raceRounds && budget>0 && !racing.isEmpty() ; round++ ) {
+			int count = (int)Math.max( 1, budget / ( (long)racing.size() * ( raceRounds - round ) ) ) ;
+			run( racing, patterns, tickPeriod, tpool, count ) ;
+			budget -= (long)count * racing.size() ;
+
+			if( round+1 < MIN_RACE_ROUNDS || racing.size() + cached.length <= keep ) {
+				continue ;
+			}
+			// the keep'th best lower bound, anything that can't reach it is out
+			double lower[] = Arrays.copyOf( cached, racing.size() + cached.length ) ;
+			for( int i=0 ; i<racing.size() ; i++ ) {
+				lower[ cached.length + i ] = racing.get(i).bound( -z ) ;
+			}
+			Arrays.sort( lower ) ;
+			double threshold = lower[ lower.length - keep ] ;
+			for( BrainData bd : racing ) {
+				if( bd.bound( z ) < threshold ) {
+					bd.racedOut = true ;
+				}
+			}
+			racing.removeIf( bd -> bd.racedOut ) ;
+		}
+		return brains.size() - racing.size() ;
+	}
+
+
+	/**
+	 * Run some simulations on each brain, one task per brain
+	 */
+	private void run( List<BrainData> brains, double patterns[][], double tickPeriod, ForkJoinPool tpool, int count ) {
+		List<Callable<Void>> tasks = new ArrayList<>( brains.size() ) ;
+		for( BrainData bd : brains ) {
+			tasks.add( () -> { 
+				bd.runSimulations( patterns, tickPeriod, count ) ; 
+				return null ; 
+			} ) ;
+		}
+		tpool.invokeAll( tasks ) ;
+	}
+
+
+	/**
+	 * The standard normal quantile, Abramowitz &amp; Stegun 26.2.23
+	 *
+	 * @param confidence 0.5 .. 1
+	 */
+	static double zScore( double confidence ) {
+		double p = Math.max( 1e-12, Math.min( 0.5, 1.0 - confidence ) ) ;
+		double t = Math.sqrt( -2.0 * Math.log( p ) ) ;
+		return t - ( 2.515517 + t * ( 0.802853 + t * 0.010328 ) ) / 
+				( 1.0 + t * ( 1.432788 + t * ( 0.189269 + t * 0.001308 ) ) ) ;
+	}
+
+
+	/**
+	 * Moves genomes between populations, @see Islands
+	 */
+	public interface Migration {
+		/**
+		 * @param emigrants the best genomes of this population, best first
+		 * @param scores the score of each emigrant
+		 * @return genomes from another population
+		 */
+		Genome[] migrate( Genome emigrants[], double scores[] ) throws IOException ;
+	}
+
+
+	/**
+	 * A fixed size population, that many threads can read and replace
+	 * members of at once. The worst member is found by a scan and
+	 * replaced with a compare and set, if another thread changed it
+	 * first the scan is repeated. Members are fully scored before they
+	 * are offered, and not changed after. Offers share a lock, only a
+	 * checkpoint's copy of the members holds them off.
+	 */
+	private class RankedPopulation {
+		private final AtomicReferenceArray<BrainData> members ;
+		private final ReadWriteLock lock = new ReentrantReadWriteLock() ;
+		final AtomicInteger offers ;
+
+		RankedPopulation( BrainData initial[], int offers ) {
+			this.members = new AtomicReferenceArray<>( initial ) ;
+			this.offers = new AtomicInteger( offers ) ;
+		}
+
+		int size() {
+			return members.length() ;
+		}
+
+		/**
+		 * Copy the members, with no offer half made
+		 *
+		 * @return the offers made to the copied members
+		 */
+		int copy( BrainData rc[] ) {
+			lock.writeLock().lock() ;
+			try {
+				for( int i=0 ; i<rc.length ; i++ ) {
+					rc[i] = members.get( i ) ;
+				}
+				return offers.get() ;
+			} finally {
+				lock.writeLock().unlock() ;
+			}
+		}
+
+		/**
+		 * The better of two random members
+		 */
+		BrainData select( SplittableRandom r ) {
+			BrainData a = members.get( r.nextInt( members.length() ) ) ;
+			BrainData b = members.get( r.nextInt( members.length() ) ) ;
+			return a.score >= b.score ? a : b ;
+		}
+
+		/**
+		 * @return whether the brain replaced the worst member
+		 */
+		boolean offer( BrainData bd ) {
+			lock.readLock().lock() ;
+			try {
+				offers.incrementAndGet() ;
+				return replaceWorst( bd ) ;
+			} finally {
+				lock.readLock().unlock() ;
+			}
+		}
+
+		private boolean replaceWorst( BrainData bd ) {
+			for( ; ; ) {
+				int worst = 0 ;
+				BrainData w = members.get( 0 ) ;
+				for( int i=1 ; i<members.length() ; i++ ) {
+					BrainData m = members.get( i ) ;
+					if( m.score < w.score ) {
+						worst = i ;
+						w = m ;
+					}
+				}
+				if( !( bd.score > w.score ) ) {
+					return false ;
+				}
+				if( members.compareAndSet( worst, w, bd ) ) {
+					return true ;
+				}
+			}
+		}
+
+		BrainData best() {
+			BrainData rc = members.get( 0 ) ;
+			for( int i=1 ; i<members.length() ; i++ ) {
+				BrainData m = members.get( i ) ;
+				if( m.score > rc.score ) {
+					rc = m ;
+				}
+			}
+			return rc ;
+		}
+	}
+
+
 	class BrainData implements Comparable<BrainData>{
-		final Brain brain ;
+		private Brain brain ;
+		private Genome genome ;
+		private float weights[] ;		// exact weights for a brain built from a checkpoint
+		private byte state[] ;			// and the state it carries on from
 		double score ;
+		boolean racedOut ;
+		private long key ;
+		private boolean hasKey ;
+
+		// this epoch's progress, only the brain's task changes these
+		private double total ;
+		private int simulationsRun ;
+		private int pattern ;
+		private int samples ;
+		private double sampleSum ;
+		private double sampleSumSq ;
 
 		public BrainData( Brain b ) {
 			this.brain = b ;
 		}
 
+		public BrainData( Genome g ) {
+			this.genome = g ;
+		}
+
+		public BrainData( Checkpoint.Member m ) {
+			this.genome = m.genome ;
+			this.weights = m.weights ;
+			this.state = m.state ;
+			this.score = m.score ;
+			this.racedOut = m.racedOut ;
+			this.hasKey = m.hasKey ;
+			this.key = m.key ;
+		}
+
+		public Brain brain( double tickPeriod ) {
+			if( brain == null ) {
+				brain = new Brain( tickPeriod, genome ) ;
+				genome = null ;
+				// the genome's weights are rounded, put back the exact ones
+				Synapses synapses = brain.getSynapses() ;
+				if( weights != null && weights.length == synapses.nnz() ) {
+					for( int i=0 ; i<weights.length ; i++ ) {
+						synapses.setWeight( i, weights[i] ) ;
+					}
+				}
+				weights = null ;
+				if( state != null ) {
+					try {
+						brain.restoreState( state ) ;
+					} catch( IOException ioe ) {
+						log.warn( "Failed to restore a brain's state {}", ioe.getMessage() ) ;
+					}
+				}
+				state = null ;
+			}
+			return brain ;
+		}
+
+		public Checkpoint.Member snapshot() throws IOException {
+			float w[] = brain != null ? brain.getSynapses().copyWeights() : weights ;
+			byte s[] = brain != null ? brain.saveState() : state ;
+			return new Checkpoint.Member( score, racedOut, hasKey, key, genome(), w, s ) ;
+		}
+
 		public Genome genome() {
-			return brain.toGenome() ;
+			return genome != null ? genome : brain.toGenome() ;
+		}
+
+		/**
+		 * The cache key of the genome the brain was evaluated with. It's
+		 * kept even though training changes the brain's weights.
+		 */
+		public long key( long settings ) {
+			if( !hasKey ) {
+				key = genome().hash64() ^ settings ;
+				hasKey = true ;
+			}
+			return key ;
+		}
+
+		/**
+		 * Hold on to the genome of the brain as it is now, so it's
+		 * not rebuilt each time it's a parent.
+		 */
+		public void keepGenome() {
+			genome = genome() ;
 		}
 
-		public void resetScore() {
+		public void startEpoch() {
 			score = 0 ;
+			total = 0 ;
+			simulationsRun = 0 ;
+			pattern = 0 ;
+			samples = 0 ;
+			sampleSum = 0 ;
+			sampleSumSq = 0 ;
+			racedOut = false ;
 		}
-		
-		public void updateScore() {
-			score += brain.getSummaryScore() ;
-			brain.resetSummaryScore() ;
-			log.debug( "Scored {}", score ) ;
+
+		/**
+		 * Show the patterns in turn to the brain, for a batch of ticks 
+		 * each, carrying on from the last pattern shown this epoch. 
+		 * Only this task touches the brain &amp; its inputs.
+		 *
+		 * The score is the mean per simulation, so brains that ran
+		 * different numbers of simulations can be compared.
+		 */
+		public void runSimulations( double patterns[][], double tickPeriod, int count ) {
+			try {
+				Brain brain = brain( tickPeriod ) ;
+				if( simulationsRun == 0 ) {
+					brain.resetNeurons() ;
+					brain.resetSummaryScore() ;
+				}
+				double inputs[] = new double[ brain.getNumInputs() ] ;
+
+				for( int simulation=0 ; simulation<count ; simulation++ ) {
+					// A1 = rotate through patterns
+					System.arraycopy( patterns[pattern], 0, inputs, 0, inputs.length ) ;
+					for( int b=0 ; b<batchSize ; b++ ) {
+						brain.step(inputs);
+						brain.train(pattern);
+					}
+					pattern++ ;
+					if( pattern>=patterns.length ) {
+						pattern = 0 ;
+					}
+				}
+				double s = brain.getSummaryScore() ;
+				brain.resetSummaryScore() ;
+
+				total += s ;
+				simulationsRun += count ;
+				score = total / simulationsRun ;
+				sampleSum += s / count ;
+				sampleSumSq += ( s / count ) * ( s / count ) ;
+				samples++ ;
+				log.debug( "Scored {}", score ) ;
+			} catch (Throwable t) {
+				log.error("Failed to step", t);
+			}
+		}
+
+		/**
+		 * @return the mean score per simulation plus z standard errors
+		 */
+		public double bound( double z ) {
+			if( samples < 2 ) {
+				return z < 0 ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY ;
+			}
+			double mean = sampleSum / samples ;
+			double var = Math.max( 0, ( sampleSumSq - samples * mean * mean ) / ( samples - 1 ) ) ;
+			return mean + z * Math.sqrt( var / samples ) ;
 		}
 
 		
-		// Sorts large to small ( inverse to usual order )
+		// Sorts large to small ( inverse to usual order ), brains that were raced out come last
 		@Override
 		public int compareTo(BrainData o) {		
 			log.debug( "Comparing {} with {}", score, o.score ) ;
+			if( racedOut != o.racedOut ) {
+				return racedOut ? 1 : -1 ;
+			}
 			return (score > o.score ) ? -1 : ( (score < o.score) ? 1 : 0 ) ;
 		}
 	}
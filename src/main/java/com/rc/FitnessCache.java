@@ -0,0 +1,114 @@
+package com.rc ;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the score of each genome evaluated in a run, so a genome
+ * is only simulated once. Keys are a genome's hash mixed with a hash
+ * of the evaluation settings. The least recently used entries are
+ * dropped once the cache is full.
+ *
+ * The steady state evolution uses it from many threads, so access is
+ * synchronized.
+ */
+class FitnessCache {
+
+	private final Map<Long,Fitness> scores ;
+	private long lookups ;
+	private long hits ;
+
+
+	FitnessCache( final int capacity ) {
+		this.scores = new LinkedHashMap<Long,Fitness>( 16, 0.75f, true ) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<Long,Fitness> eldest ) {
+				return size() > capacity ;
+			}
+		} ;
+	}
+
+
+	/**
+	 * @return the remembered score, or null if the genome hasn't been evaluated
+	 */
+	synchronized Fitness get( long key ) {
+		lookups++ ;
+		Fitness rc = scores.get( key ) ;
+		if( rc != null ) {
+			hits++ ;
+		}
+		return rc ;
+	}
+
+	synchronized void put( long key, double score, boolean racedOut ) {
+		scores.put( key, new Fitness( score, racedOut ) ) ;
+	}
+
+	/**
+	 * @return a copy of the entries, e.g. for a checkpoint to write while this one changes
+	 */
+	synchronized FitnessCache copy() {
+		FitnessCache rc = new FitnessCache( Math.max( 1, scores.size() ) ) ;
+		rc.scores.putAll( scores ) ;
+		return rc ;
+	}
+
+	/**
+	 * Add another cache's entries, they keep their order of use
+	 */
+	synchronized void putAll( FitnessCache other ) {
+		synchronized( other ) {
+			scores.putAll( other.scores ) ;
+		}
+	}
+
+	/**
+	 * Write the entries, least recently used first, @see #read
+	 */
+	synchronized void write( DataOutput out ) throws IOException {
+		out.writeInt( scores.size() ) ;
+		for( Map.Entry<Long,Fitness> e : scores.entrySet() ) {
+			out.writeLong( e.getKey() ) ;
+			out.writeDouble( e.getValue().score ) ;
+			out.writeBoolean( e.getValue().racedOut ) ;
+		}
+	}
+
+	/**
+	 * @return a cache just big enough for the entries written by @see #write
+	 */
+	static FitnessCache read( DataInput in ) throws IOException {
+		int n = in.readInt() ;
+		FitnessCache rc = new FitnessCache( Math.max( 1, n ) ) ;
+		for( int i=0 ; i<n ; i++ ) {
+			long key = in.readLong() ;
+			double score = in.readDouble() ;
+			rc.put( key, score, in.readBoolean() ) ;
+		}
+		return rc ;
+	}
+
+	synchronized long lookups() { return lookups ; }
+	synchronized long hits() { return hits ; }
+
+	synchronized double hitRate() {
+		return lookups == 0 ? 0 : (double)hits / lookups ;
+	}
+
+
+	static class Fitness {
+		final double score ;
+		final boolean racedOut ;
+
+		Fitness( double score, boolean racedOut ) {
+			this.score = score ;
+			this.racedOut = racedOut ;
+		}
+	}
+}
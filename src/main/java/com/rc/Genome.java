@@ -1,8 +1,15 @@
 package com.rc ;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.StringJoiner;
 
 import org.slf4j.Logger;
@@ -11,93 +18,449 @@ import org.slf4j.LoggerFactory;
 /**
  * This holds some numbers. Each number is 0..1, with a granularity
  * of 1/BITS_PER_NUMBER
- * 
+ *
+ * The numbers are packed into longs, number i is bits i*BITS_PER_NUMBER
+ * onwards, low bit first, so a number may span two words. Crossover and
+ * mutation work on whole words with masks.
+ *
+ * A genome may record its layout as it is written. Records are runs of
+ * numbers that only make sense whole, e.g. a variable length list, and
+ * mutable numbers are the only ones mutation may change. Parents with
+ * the same records swap whole records, at whatever index each parent
+ * holds them, so a child is always well formed.
+ *
+ * The serialized form is still a BitSet and a capacity, plus the layout.
  */
-public class Genome  implements Serializable {	
+public class Genome  implements Serializable {
 
 	private static final long serialVersionUID = 1L;
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField( "data", BitSet.class ),
+		new ObjectStreamField( "capacity", int.class ),
+		new ObjectStreamField( "records", int[].class ),
+		new ObjectStreamField( "mutable", long[].class )
+	} ;
 
 	final public static Logger log = LoggerFactory.getLogger( Genome.class ) ;
-	final private static Random rng = new Random( 28 ) ;
 
-	// Numbers have a range of 0..1 in  1/( 2^BITS_PER_NUMBER ) 
-	final public static int BITS_PER_NUMBER = 10 ; 
+	final private static SplittableRandom seeds = new SplittableRandom( 28 ) ;	// for children made without a random source
+
+	// Numbers have a range of 0..1 in  1/( 2^BITS_PER_NUMBER )
+	final public static int BITS_PER_NUMBER = 10 ;
 	final public static double NUMBER_GRANULARITY = 1 << BITS_PER_NUMBER ;
+	final private static long NUMBER_MASK = ( 1L << BITS_PER_NUMBER ) - 1 ;
+	final private static int VARINT_BITS = BITS_PER_NUMBER - 1 ;
+	final private static int VARINT_MASK = ( 1 << VARINT_BITS ) - 1 ;
+	final private static int VARINT_MORE = 1 << VARINT_BITS ;
 
-	final private BitSet data ;
+	private transient long words[] ;
 	private int capacity ;
 
+	// layout - empty if the genome wasn't written in records
+	private transient int records[] ;		// index of the first number of each record
+	private transient int numRecords ;
+	private transient long mutable[] ;		// bit per number, null if all are mutable
+
 	/**
 	 * Create a genome that can hold a some data
 	 * items. All items are cleared.
 	 */
 	public Genome() {
-		this.data = new BitSet() ;
+		this.words = new long[ 4 ] ;
+		this.records = new int[ 0 ] ;
 		capacity = 0 ;
-	} 
+	}
 
 
 	/**
 	 * Create a genome that is a child of two parents.
 	 * Characteristics are taken from each parent. After
 	 * creation a mutation on the child is performed.
-	 * 
+	 * The random choices come from a shared source.
+	 *
 	 * @param p1 the mommy gene
 	 * @param p2 the daddy gene
 	 * @param mutationRate the absolute chance of a mutation occurring (post birth)
 	 */
 	public Genome( Genome p1, Genome p2, double mutationRate, int ... fixedParams ) {
-		this.data = new BitSet() ;
-		
-		for( int i=0 ; i<p1.capacity ; i++ ) {
-			Genome g = rng.nextBoolean() ? p1 : p2 ;			
-			set( g.getInt( i ), i );
-		}
-		
-		/*
-		
-		int len = Math.max( p1.data.length(), p2.data.length() ) ;
-
-		int run ;
-		for( int i=0 ; i<len ; i+=run ) {
-			run = rng.nextInt( BITS_PER_NUMBER ) ;
-			if( i+run >= len ) {
-				run = len - run - 1 ;
-			}
-			BitSet b = rng.nextBoolean() ? p1.data : p2.data ;
-			
-			for( int j=0 ; j<run ; j++ ) {
-				data.set( i+j, b.get(i+j) ) ;
-			} 
+		this( p1, p2, 0, mutationRate, nextRandom(), fixedParams ) ;
+	}
+
+
+	private static SplittableRandom nextRandom() {
+		synchronized( seeds ) {
+			return seeds.split() ;
 		}
+	}
 
-		for( int i=0 ; i<len ; i++ ) {
-			if( rng.nextDouble() < mutationRate ) {
-				data.set(i, !data.get(i) ) ;
+
+	/**
+	 * Create a genome that is a child of two parents.
+	 * Characteristics are taken from each parent. After
+	 * creation a mutation on the child is performed.
+	 *
+	 * @param p1 the mommy gene
+	 * @param p2 the daddy gene
+	 * @param mutationRate the absolute chance of a mutation occurring (post birth)
+	 * @param rng the source of the random choices
+	 */
+	public Genome( Genome p1, Genome p2, double mutationRate, SplittableRandom rng, int ... fixedParams ) {
+		this( p1, p2, 0, mutationRate, rng, fixedParams ) ;
+	}
+
+
+	/**
+	 * Create a genome that is a child of two parents.
+	 *
+	 * @param p1 the mommy gene
+	 * @param p2 the daddy gene
+	 * @param crossoverPoints 0 to pick each number from either parent,
+	 * 		otherwise the number of places to swap parents
+	 * @param mutationRate the chance of each bit flipping (post birth)
+	 * @param rng the source of the random choices
+	 * @param fixedParams numbers always copied from p1, they're not mutated
+	 */
+	public Genome( Genome p1, Genome p2, int crossoverPoints, double mutationRate, SplittableRandom rng, int ... fixedParams ) {
+		if( sameRecords( p1, p2 ) ) {
+			this.words = new long[ wordsFor( Math.max( p1.capacity, p2.capacity ) ) ] ;
+			this.records = new int[ p1.numRecords ] ;
+			this.mutable = p1.mutable == null && p2.mutable == null ? null : new long[ words.length ] ;
+			recordCrossover( p1, p2, crossoverPoints, rng ) ;
+		} else {
+			this.capacity = Math.max( p1.capacity, p2.capacity ) ;
+			this.words = new long[ wordsFor( capacity ) ] ;
+			this.records = new int[ 0 ] ;
+			if( crossoverPoints <= 0 ) {
+				uniformCrossover( p1, p2, rng ) ;
+			} else {
+				pointCrossover( p1, p2, crossoverPoints, rng ) ;
 			}
 		}
-		
+		mutate( mutationRate, rng ) ;
+
 		for( int i=0 ; i<fixedParams.length ; i++ ) {
-			set( fixedParams[i], p1.getInt( fixedParams[i] ) );
+			set( p1.getInt( fixedParams[i] ), fixedParams[i] ) ;
 		}
-		*/
-		capacity = Math.max( p1.capacity, p2.capacity ) ; ;
 	}
 
+
+	/**
+	 * @return whether two genomes have the same records, after the same
+	 * 		header, so they can swap records
+	 */
+	private static boolean sameRecords( Genome p1, Genome p2 ) {
+		return p1.numRecords > 0
+				&& p1.numRecords == p2.numRecords
+				&& p1.records[0] == p2.records[0] ;
+	}
+
+
+	/**
+	 * Take each record from either parent, the header is from p1. With
+	 * no crossover points each record is a coin toss, otherwise the
+	 * parents swap at that many record boundaries.
+	 */
+	private void recordCrossover( Genome p1, Genome p2, int points, SplittableRandom rng ) {
+		int n = p1.numRecords ;
+		int cuts[] = new int[ Math.max( points, 0 ) + 1 ] ;
+		for( int i=0 ; i<points ; i++ ) {
+			cuts[i] = rng.nextInt( n + 1 ) ;
+		}
+		cuts[ cuts.length-1 ] = n ;
+		Arrays.sort( cuts, 0, cuts.length-1 ) ;
+
+		copyRecord( p1, 0, p1.records[0] ) ;
+		long choices = 0 ;
+		int cut = 0 ;
+		Genome parent = p1 ;
+		for( int r=0 ; r<n ; r++ ) {
+			if( points <= 0 ) {
+				if( ( r & 63 ) == 0 ) {
+					choices = rng.nextLong() ;
+				}
+				parent = ( choices & ( 1L << r ) ) == 0 ? p1 : p2 ;
+			} else {
+				for( ; cuts[cut] <= r ; cut++ ) {
+					parent = parent == p1 ? p2 : p1 ;
+				}
+			}
+			records[ numRecords++ ] = capacity ;
+			copyRecord( parent, parent.records[r], parent.recordEnd(r) ) ;
+		}
+	}
+
+
+	private int recordEnd( int r ) {
+		return r+1 < numRecords ? records[r+1] : capacity ;
+	}
+
+
+	/**
+	 * Append numbers [from, to) of a parent, and whether they're mutable
+	 */
+	private void copyRecord( Genome src, int from, int to ) {
+		ensureCapacity( capacity + to - from ) ;
+		long bit = (long)capacity * BITS_PER_NUMBER ;
+		long end = (long)to * BITS_PER_NUMBER ;
+		for( long b=(long)from * BITS_PER_NUMBER ; b<end ; b+=64, bit+=64 ) {
+			putBits( words, bit, getBits( src.words, b ), (int)Math.min( 64, end - b ) ) ;
+		}
+		if( mutable != null ) {
+			for( int i=from, j=capacity ; i<to ; i+=64, j+=64 ) {
+				long m = src.mutable == null ? -1L : getBits( src.mutable, i ) ;
+				putBits( mutable, j, m, Math.min( 64, to - i ) ) ;
+			}
+		}
+		capacity += to - from ;
+	}
+
+
+	/**
+	 * @return 64 bits of a bitset, from any bit, zero past the end
+	 */
+	private static long getBits( long a[], long bit ) {
+		int w = (int)( bit >>> 6 ) ;
+		int offset = (int)( bit & 63 ) ;
+		long rc = w < a.length ? a[w] >>> offset : 0L ;
+		if( offset != 0 && w+1 < a.length ) {
+			rc |= a[w+1] << ( 64 - offset ) ;
+		}
+		return rc ;
+	}
+
+
+	/**
+	 * Overwrite the n low bits of a value into a bitset, from any bit
+	 */
+	private static void putBits( long a[], long bit, long v, int n ) {
+		long mask = n == 64 ? -1L : ( 1L << n ) - 1 ;
+		v &= mask ;
+		int w = (int)( bit >>> 6 ) ;
+		int offset = (int)( bit & 63 ) ;
+		a[w] = ( a[w] & ~( mask << offset ) ) | ( v << offset ) ;
+		if( offset + n > 64 ) {
+			int shift = 64 - offset ;
+			a[w+1] = ( a[w+1] & ~( mask >>> shift ) ) | ( v >>> shift ) ;
+		}
+	}
+
+
+	/**
+	 * Each number comes from either parent. A mask has all the bits of
+	 * the numbers taken from p2, then each word is a masked merge.
+	 */
+	private void uniformCrossover( Genome p1, Genome p2, SplittableRandom rng ) {
+		long mask[] = new long[ words.length ] ;
+		long choices = 0 ;
+		for( int i=0 ; i<capacity ; i++ ) {
+			if( ( i & 63 ) == 0 ) {
+				choices = rng.nextLong() ;
+			}
+			if( ( choices & ( 1L << i ) ) != 0 ) {
+				long bit = (long)i * BITS_PER_NUMBER ;
+				int w = (int)( bit >>> 6 ) ;
+				int offset = (int)( bit & 63 ) ;
+				mask[w] |= NUMBER_MASK << offset ;
+				if( offset + BITS_PER_NUMBER > 64 ) {
+					mask[w+1] |= NUMBER_MASK >>> ( 64 - offset ) ;
+				}
+			}
+		}
+		for( int w=0 ; w<words.length ; w++ ) {
+			words[w] = ( p1.word(w) & ~mask[w] ) | ( p2.word(w) & mask[w] ) ;
+		}
+	}
+
+
+	/**
+	 * Cut the genome at some number boundaries, and take alternate
+	 * sections from each parent.
+	 */
+	private void pointCrossover( Genome p1, Genome p2, int points, SplittableRandom rng ) {
+		long cuts[] = new long[ points + 1 ] ;
+		for( int i=0 ; i<points ; i++ ) {
+			cuts[i] = (long)rng.nextInt( capacity + 1 ) * BITS_PER_NUMBER ;
+		}
+		cuts[points] = (long)capacity * BITS_PER_NUMBER ;
+		Arrays.sort( cuts, 0, points ) ;
+
+		long from = 0 ;
+		Genome parent = p1 ;
+		for( int i=0 ; i<=points ; i++ ) {
+			copyBits( parent, from, cuts[i] ) ;
+			from = cuts[i] ;
+			parent = parent == p1 ? p2 : p1 ;
+		}
+	}
+
+
+	/**
+	 * Copy bits [from, to) of another genome into the same place here
+	 */
+	private void copyBits( Genome src, long from, long to ) {
+		if( from >= to ) {
+			return ;
+		}
+		int w0 = (int)( from >>> 6 ) ;
+		int w1 = (int)( ( to - 1 ) >>> 6 ) ;
+		long first = -1L << ( from & 63 ) ;
+		long last = -1L >>> ( 63 - ( ( to - 1 ) & 63 ) ) ;
+		for( int w=w0 ; w<=w1 ; w++ ) {
+			long mask = -1L ;
+			if( w == w0 ) mask &= first ;
+			if( w == w1 ) mask &= last ;
+			words[w] = ( words[w] & ~mask ) | ( src.word(w) & mask ) ;
+		}
+	}
+
+
+	/**
+	 * Flip each bit with a given chance. The gaps between flips are
+	 * geometric, so the cost is the number of flips, not the length.
+	 * If the genome has mutable numbers, the other numbers are left
+	 * alone.
+	 *
+	 * @param rate the chance of each bit flipping
+	 * @param rng the source of the random choices
+	 */
+	public void mutate( double rate, SplittableRandom rng ) {
+		flip( rate, rng, 0, true ) ;
+	}
+
+
+	/**
+	 * Flip bits of the numbers that @see #mutate leaves alone, e.g. the
+	 * counts &amp; rows that shape a brain, with their own chance. Numbers
+	 * before the first record are a header, they're never changed.
+	 *
+	 * @param rate the chance of each bit flipping
+	 * @param rng the source of the random choices
+	 */
+	public void mutateStructure( double rate, SplittableRandom rng ) {
+		if( mutable != null && numRecords > 0 ) {
+			flip( rate, rng, records[0], false ) ;
+		}
+	}
+
+
+	/**
+	 * Flip bits from a number onwards, of either the mutable numbers or the others
+	 */
+	private void flip( double rate, SplittableRandom rng, int from, boolean mutables ) {
+		if( !( rate > 0 ) ) {
+			return ;
+		}
+		long bits = (long)capacity * BITS_PER_NUMBER ;
+		double logQ = Math.log1p( -Math.min( rate, 1.0 ) ) ;
+		long bit = (long)from * BITS_PER_NUMBER - 1 ;
+		for( ; ; ) {
+			double gap = logQ == Double.NEGATIVE_INFINITY ? 0 : Math.floor( Math.log( 1.0 - rng.nextDouble() ) / logQ ) ;
+			if( !( gap < bits - bit - 1 ) ) {
+				break ;
+			}
+			bit += 1 + (long)gap ;
+			if( isMutable( (int)( bit / BITS_PER_NUMBER ) ) == mutables ) {
+				words[ (int)( bit >>> 6 ) ] ^= 1L << bit ;
+			}
+		}
+	}
+
+
+	private static int wordsFor( int numbers ) {
+		return (int)( ( (long)numbers * BITS_PER_NUMBER + 63 ) >>> 6 ) + 1 ;
+	}
+
+	private long word( int w ) {
+		return w < words.length ? words[w] : 0L ;
+	}
+
+	private void ensureCapacity( int numbers ) {
+		int n = wordsFor( numbers ) ;
+		if( n > words.length ) {
+			words = Arrays.copyOf( words, Math.max( n, words.length * 2 ) ) ;
+		}
+		if( mutable != null && mutable.length < words.length ) {
+			mutable = Arrays.copyOf( mutable, words.length ) ;
+		}
+	}
+
+
+	/**
+	 * @return whether mutation may change a number
+	 */
+	public boolean isMutable( int index ) {
+		return mutable == null || ( index>>>6 < mutable.length && ( mutable[index>>>6] & (1L << index) ) != 0 ) ;
+	}
+
+
+	/**
+	 * Start a record at the next number appended. Records are swapped
+	 * whole by crossover.
+	 */
+	public void startRecord() {
+		if( numRecords == records.length ) {
+			records = Arrays.copyOf( records, Math.max( 16, numRecords * 2 ) ) ;
+		}
+		records[ numRecords++ ] = capacity ;
+	}
+
+
+	/**
+	 * Append a number that mutation may change. Once a genome has
+	 * one of these, only these are mutated, the others only change
+	 * by @see #mutateStructure.
+	 *
+	 * @param value The value to store
+	 */
+	public void setMutable( int value ) {
+		int index = capacity ;
+		if( mutable == null ) {
+			mutable = new long[ words.length ] ;
+		}
+		set( value, index ) ;
+		mutable[ index>>>6 ] |= 1L << index ;
+	}
+
+
+	/**
+	 * Append a 0..1 number that mutation may change, @see #setMutable(int)
+	 */
+	public void setMutable( double value ) {
+		setMutable( (int)Math.floor( NUMBER_GRANULARITY * value ) ) ;
+	}
+
+
+	/**
+	 * @return the number of records, 0 if the genome has no layout
+	 */
+	public int records() {
+		return numRecords ;
+	}
+
+
+	/**
+	 * @return the index of the first number of a record
+	 */
+	public int record( int k ) {
+		return records[k] ;
+	}
+
+
 	/**
 	 * Get a copy of one of the values from the genome
 	 * @param index the zero based index in the genome
 	 * @return The stored value - range is 0 .. 2^BITS_PER_NUMBER
 	 */
 	public int getInt( int index ) {
-		int rc = 0 ;
+		long bit = (long)index * BITS_PER_NUMBER ;
+		int w = (int)( bit >>> 6 ) ;
+		int offset = (int)( bit & 63 ) ;
 
-		int start = index * BITS_PER_NUMBER ;
-		int mask = 1 ;
-		for( int i=0 ; i<BITS_PER_NUMBER ; i++, mask <<= 1 ) {
-			rc += data.get(start+i) ? mask : 0  ;
+		long rc = word(w) >>> offset ;
+		if( offset + BITS_PER_NUMBER > 64 ) {
+			rc |= word(w+1) << ( 64 - offset ) ;
 		}
-		return rc  ;
+		return (int)( rc & NUMBER_MASK ) ;
 	}
 
 
@@ -118,15 +481,17 @@ public class Genome  implements Serializable {
 	 * @param value The value to store - range is 0.0 .. 1.0
 	 * @param index the zero based index in the genome
 	 */
-	public void  set( int value, int index ) {		
-		int mask = 1 ;
-		int start = index * BITS_PER_NUMBER ;
-		for( int i=0 ; i<BITS_PER_NUMBER ; i++, mask <<= 1 ) {
-			if( 0 != (mask & value) ) {
-				data.set( start + i ) ;
-			} else {
-				data.clear( start + i ) ;
-			}
+	public void  set( int value, int index ) {
+		ensureCapacity( index+1 ) ;
+		long v = value & NUMBER_MASK ;
+		long bit = (long)index * BITS_PER_NUMBER ;
+		int w = (int)( bit >>> 6 ) ;
+		int offset = (int)( bit & 63 ) ;
+
+		words[w] = ( words[w] & ~( NUMBER_MASK << offset ) ) | ( v << offset ) ;
+		if( offset + BITS_PER_NUMBER > 64 ) {
+			int shift = 64 - offset ;
+			words[w+1] = ( words[w+1] & ~( NUMBER_MASK >>> shift ) ) | ( v >>> shift ) ;
 		}
 		if( index+1 > capacity ) {
 			capacity = index+1 ;
@@ -167,16 +532,33 @@ public class Genome  implements Serializable {
 
 
 
+	/**
+	 * Append a non negative int of any size. Each number holds 9 bits
+	 * of the value and a flag set when more numbers follow, so values
+	 * below 512 take one number.
+	 *
+	 * @param value The value to store
+	 */
+	public void setVarint( int value ) {
+		int v = value ;
+		while( ( v & ~VARINT_MASK ) != 0 ) {
+			set( ( v & VARINT_MASK ) | VARINT_MORE ) ;
+			v >>>= VARINT_BITS ;
+		}
+		set( v ) ;
+	}
+
+
 	/**
 	 * Append one genome to the end of this
 	 * @param tail the genome to glue onto the end of the receiver
 	 */
 	public void append( Genome tail ) {
-		int start = capacity * BITS_PER_NUMBER ;
-		for( int i = tail.data.nextSetBit(0); i >= 0; i = tail.data.nextSetBit(i+1) ) {
-			data.set( i + start ) ;
-		} 
-		capacity += tail.capacity ;
+		int start = capacity ;
+		for( int i=0 ; i<tail.capacity ; i++ ) {
+			set( tail.getInt(i), start + i ) ;
+		}
+		capacity = start + tail.capacity ;
 	}
 
 	/**
@@ -188,11 +570,108 @@ public class Genome  implements Serializable {
 		Genome rc = new Genome() ;
 		for( int i=0 ; i<length ; i++ ) {
 			rc.set( getInt( start + i ), i ) ;
-		} 
+		}
 		return rc ;
 	}
 
 
+	/**
+	 * Read the numbers in order, starting at a given index. Don't change
+	 * the genome while reading it.
+	 *
+	 * @param index the zero based index of the first number to read
+	 */
+	public Reader reader( int index ) {
+		return new Reader( words, index ) ;
+	}
+
+
+	/**
+	 * Sequential access to the numbers, each is a shift and mask of
+	 * one or two packed words.
+	 */
+	public static class Reader {
+		private final long words[] ;
+		private long bit ;
+
+		Reader( long words[], int index ) {
+			this.words = words ;
+			this.bit = (long)index * BITS_PER_NUMBER ;
+		}
+
+		public int nextInt() {
+			int w = (int)( bit >>> 6 ) ;
+			int offset = (int)( bit & 63 ) ;
+			bit += BITS_PER_NUMBER ;
+
+			long rc = w < words.length ? words[w] >>> offset : 0 ;
+			if( offset + BITS_PER_NUMBER > 64 && w+1 < words.length ) {
+				rc |= words[w+1] << ( 64 - offset ) ;
+			}
+			return (int)( rc & NUMBER_MASK ) ;
+		}
+
+		public double nextDouble() {
+			return nextInt() / NUMBER_GRANULARITY ;
+		}
+
+		/**
+		 * Read a value written by @see Genome#setVarint. A damaged
+		 * value stops once an int is full.
+		 */
+		public int nextVarint() {
+			int rc = 0 ;
+			for( int shift=0 ; shift<32 ; shift+=VARINT_BITS ) {
+				int n = nextInt() ;
+				rc |= ( n & VARINT_MASK ) << shift ;
+				if( ( n & VARINT_MORE ) == 0 ) {
+					break ;
+				}
+			}
+			return rc ;
+		}
+
+		/**
+		 * @return the index of the next number to be read
+		 */
+		public int index() {
+			return (int)( bit / BITS_PER_NUMBER ) ;
+		}
+	}
+
+
+	/**
+	 * A 64 bit hash of the numbers, equal genomes have equal hashes.
+	 * Each word is mixed in, then the total is avalanched.
+	 */
+	public long hash64() {
+		long bits = (long)capacity * BITS_PER_NUMBER ;
+		int n = (int)( ( bits + 63 ) >>> 6 ) ;
+		long h = capacity * 0x9E3779B97F4A7C15L ;
+		for( int w=0 ; w<n ; w++ ) {
+			long v = word( w ) ;
+			if( w == n-1 && ( bits & 63 ) != 0 ) {
+				v &= -1L >>> ( 64 - ( bits & 63 ) ) ;
+			}
+			h ^= Long.rotateLeft( v * 0x87C37B91114253D5L, 31 ) * 0x4CF5AD432745937FL ;
+			h = Long.rotateLeft( h, 27 ) * 5 + 0x52DCE729 ;
+		}
+		return mix64( h ) ;
+	}
+
+	/**
+	 * The murmur3 finalizer, every input bit affects every output bit
+	 */
+	static long mix64( long h ) {
+		h ^= h >>> 33 ;
+		h *= 0xFF51AFD7ED558CCDL ;
+		h ^= h >>> 33 ;
+		h *= 0xC4CEB9FE1A85EC53L ;
+		h ^= h >>> 33 ;
+		return h ;
+	}
+
+
 	public double accuracy() {
 		return (1.0/BITS_PER_NUMBER) ;
 	}
@@ -209,6 +688,92 @@ public class Genome  implements Serializable {
 		}
 		return rc.toString() ;
 	}
-}
 
 
+	/**
+	 * Write the packed numbers, a capacity then just enough words to
+	 * hold them. Then the layout, the records as deltas and a word of
+	 * mutable flags per 64 numbers, or -1 if all are mutable. This is
+	 * the wire format between islands.
+	 */
+	public void write( DataOutput out ) throws IOException {
+		out.writeInt( capacity ) ;
+		int n = (int)( ( (long)capacity * BITS_PER_NUMBER + 63 ) >>> 6 ) ;
+		for( int w=0 ; w<n ; w++ ) {
+			out.writeLong( word( w ) ) ;
+		}
+		out.writeInt( numRecords ) ;
+		for( int r=0 ; r<numRecords ; r++ ) {
+			out.writeInt( records[r] - ( r == 0 ? 0 : records[r-1] ) ) ;
+		}
+		if( mutable == null ) {
+			out.writeInt( -1 ) ;
+		} else {
+			int m = ( capacity + 63 ) >>> 6 ;
+			out.writeInt( m ) ;
+			for( int w=0 ; w<m ; w++ ) {
+				out.writeLong( w < mutable.length ? mutable[w] : 0L ) ;
+			}
+		}
+	}
+
+	/**
+	 * Read a genome written by @see #write
+	 */
+	public static Genome read( DataInput in ) throws IOException {
+		int capacity = in.readInt() ;
+		if( capacity < 0 ) {
+			throw new IOException( "Invalid genome length " + capacity ) ;
+		}
+		Genome rc = new Genome() ;
+		rc.capacity = capacity ;
+		rc.words = new long[ wordsFor( capacity ) ] ;
+		int n = (int)( ( (long)capacity * BITS_PER_NUMBER + 63 ) >>> 6 ) ;
+		for( int w=0 ; w<n ; w++ ) {
+			rc.words[w] = in.readLong() ;
+		}
+		int numRecords = in.readInt() ;
+		if( numRecords < 0 || numRecords > capacity ) {
+			throw new IOException( "Invalid genome record count " + numRecords ) ;
+		}
+		rc.records = new int[ numRecords ] ;
+		for( int r=0 ; r<numRecords ; r++ ) {
+			rc.records[r] = in.readInt() + ( r == 0 ? 0 : rc.records[r-1] ) ;
+		}
+		rc.numRecords = numRecords ;
+		int m = in.readInt() ;
+		if( m >= 0 ) {
+			rc.mutable = new long[ Math.max( m, rc.words.length ) ] ;
+			for( int w=0 ; w<m ; w++ ) {
+				rc.mutable[w] = in.readLong() ;
+			}
+		}
+		return rc ;
+	}
+
+
+	private void writeObject( ObjectOutputStream oos ) throws IOException {
+		ObjectOutputStream.PutField fields = oos.putFields() ;
+		fields.put( "data", BitSet.valueOf( words ) ) ;
+		fields.put( "capacity", capacity ) ;
+		fields.put( "records", Arrays.copyOf( records, numRecords ) ) ;
+		fields.put( "mutable", mutable ) ;
+		oos.writeFields() ;
+	}
+
+	private void readObject( ObjectInputStream ois ) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = ois.readFields() ;
+		BitSet data = (BitSet)fields.get( "data", null ) ;
+		capacity = fields.get( "capacity", 0 ) ;
+		words = new long[ wordsFor( capacity ) ] ;
+		if( data != null ) {
+			long packed[] = data.toLongArray() ;
+			System.arraycopy( packed, 0, words, 0, Math.min( packed.length, words.length ) ) ;
+		}
+		// older genomes have no layout
+		records = (int[])fields.get( "records", new int[ 0 ] ) ;
+		numRecords = records.length ;
+		long m[] = (long[])fields.get( "mutable", null ) ;
+		mutable = m == null ? null : Arrays.copyOf( m, Math.max( m.length, words.length ) ) ;
+	}
+}
@@ -0,0 +1,294 @@
+package com.rc ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Island model evolution. Each worker process evolves its own population,
+ * every few epochs the best genomes of each island move to the next
+ * island in a ring. A coordinator connects the islands, workers connect
+ * to it over TCP, so they can run on this or any other machine.
+ *
+ * Messages are plain data streams, genomes are sent packed @see Genome#write
+ *
+ *	worker hello		MAGIC
+ *	coordinator reply	island number, seed, inputs, outputs, rows, columns
+ *	worker resume		first epoch, 0 for a new population
+ *	coordinator reply	first epoch, -1 if the islands don't agree
+ *	worker migrate		MIGRATE, count, ( score, genome ) * count
+ *	coordinator reply	count, genome * count
+ *	worker done			DONE, score, genome, weight count, weights
+ *
+ * Genomes hold 10 bit weights, so the final best brain also sends its
+ * own float weights, the coordinator's copy is the brain that trained.
+ *
+ * Every island runs the same number of epochs, so they all migrate
+ * together. Resumed islands must all start at the same epoch, each
+ * reads its own checkpoint so the coordinator checks they agree.
+ */
+public class Islands {
+	final static Logger log = LoggerFactory.getLogger( Islands.class ) ;
+
+	private final static int MAGIC = 0x49534c33 ;		// ISL3
+	private final static int MIGRATE = 1 ;
+	private final static int DONE = 2 ;
+
+
+	/**
+	 * Evolve one island for a coordinator, until the last epoch
+	 *
+	 * @param coordinator host:port of the coordinator
+	 */
+	static void work( String coordinator ) throws Exception {
+		int ix = coordinator.lastIndexOf( ':' ) ;
+		String host = ix < 0 ? "localhost" : coordinator.substring( 0, ix ) ;
+		int port = Integer.parseInt( coordinator.substring( ix+1 ) ) ;
+
+		try( Socket socket = new Socket( host, port ) ;
+				DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) ) ;
+				DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) ) ) {
+			out.writeInt( MAGIC ) ;
+			out.flush() ;
+			int island = in.readInt() ;
+			long seed = in.readLong() ;
+			int numInputs = in.readInt() ;
+			int numOutputs = in.readInt() ;
+			int rows = in.readInt() ;
+			int cols = in.readInt() ;
+			log.info( "Evolving island {} for {}", island, coordinator ) ;
+
+			Evolution evolution = Evolution.fromOptions( seed ) ;
+			if( Options.CHECKPOINT != null ) {
+				// local islands share a command line, each needs its own file
+				evolution.setCheckpoint( Options.CHECKPOINT + "." + island, Options.CHECKPOINT_INTERVAL, Options.resume ) ;
+			}
+			int firstEpoch = evolution.firstEpoch() ;
+			out.writeInt( firstEpoch ) ;
+			out.flush() ;
+			if( in.readInt() != firstEpoch ) {
+				throw new IOException( "Island " + island + " can't resume at epoch " + firstEpoch + ", the other islands are elsewhere" ) ;
+			}
+			evolution.setMigration( Options.MIGRATION, Options.MIGRANTS, ( emigrants, scores ) -> {
+				out.writeInt( MIGRATE ) ;
+				out.writeInt( emigrants.length ) ;
+				for( int i=0 ; i<emigrants.length ; i++ ) {
+					out.writeDouble( scores[i] ) ;
+					emigrants[i].write( out ) ;
+				}
+				out.flush() ;
+
+				Genome rc[] = new Genome[ in.readInt() ] ;
+				for( int i=0 ; i<rc.length ; i++ ) {
+					rc[i] = Genome.read( in ) ;
+				}
+				return rc ;
+			} ) ;
+			Brain best = evolution.evolve( Options.TestPatterns, Options.TICK_PERIOD, numInputs, numOutputs, rows, cols ) ;
+
+			out.writeInt( DONE ) ;
+			out.writeDouble( evolution.getBestScore() ) ;
+			best.toGenome().write( out ) ;
+			float weights[] = best.getSynapses().copyWeights() ;
+			out.writeInt( weights.length ) ;
+			for( float w : weights ) {
+				out.writeFloat( w ) ;
+			}
+			out.flush() ;
+		}
+	}
+
+
+	/**
+	 * Run the islands to the end, passing migrants between them.
+	 *
+	 * @param islands the number of islands
+	 * @param localIslands how many to start as worker JVMs here, -1 for all
+	 * @param port the port to listen on, 0 for any
+	 * @param seed the source of each island's seed
+	 * @param numInputs the inputs of every island's brains
+	 * @param numOutputs the outputs of every island's brains
+	 * @param rows the rows of every island's brains
+	 * @param cols the columns of every island's brains
+	 * @return the best brain of all the islands, with its trained weights
+	 */
+	static Brain coordinate( int islands, int localIslands, int port, long seed, int numInputs, int numOutputs, int rows, int cols ) throws Exception {
+		try( ServerSocket server = new ServerSocket( port ) ) {
+			return coordinate( server, islands, localIslands, seed, numInputs, numOutputs, rows, cols ) ;
+		}
+	}
+
+
+	/**
+	 * @see #coordinate(int, int, int, long, int, int, int, int) with workers connecting to a given server
+	 */
+	static Brain coordinate( ServerSocket server, int islands, int localIslands, long seed, int numInputs, int numOutputs, int rows, int cols ) throws Exception {
+		SplittableRandom rng = new SplittableRandom( seed ) ;
+		List<Process> local = new ArrayList<>() ;
+		Island island[] = new Island[ islands ] ;
+
+		try {
+			int numLocal = localIslands < 0 ? islands : Math.min( localIslands, islands ) ;
+			log.info( "Island coordinator on port {}, {} of {} islands are local", server.getLocalPort(), numLocal, islands ) ;
+			for( int i=0 ; i<numLocal ; i++ ) {
+				local.add( startWorker( server.getLocalPort(), numLocal ) ) ;
+			}
+
+			for( int i=0 ; i<islands ; i++ ) {
+				island[i] = new Island( server.accept() ) ;
+				if( island[i].in.readInt() != MAGIC ) {
+					throw new IOException( "Not an island worker " + island[i].socket.getRemoteSocketAddress() ) ;
+				}
+				island[i].out.writeInt( i ) ;
+				island[i].out.writeLong( rng.nextLong() ) ;
+				island[i].out.writeInt( numInputs ) ;
+				island[i].out.writeInt( numOutputs ) ;
+				island[i].out.writeInt( rows ) ;
+				island[i].out.writeInt( cols ) ;
+				island[i].out.flush() ;
+				log.info( "Island {} is {}", i, island[i].socket.getRemoteSocketAddress() ) ;
+			}
+
+			// islands migrate on the same epochs, so they must start on the same one
+			int firstEpoch[] = new int[ islands ] ;
+			for( int i=0 ; i<islands ; i++ ) {
+				firstEpoch[i] = island[i].in.readInt() ;
+			}
+			boolean agreed = Arrays.stream( firstEpoch ).distinct().count() == 1 ;
+			for( int i=0 ; i<islands ; i++ ) {
+				island[i].out.writeInt( agreed ? firstEpoch[i] : -1 ) ;
+				island[i].out.flush() ;
+			}
+			if( !agreed ) {
+				throw new IOException( "Islands would resume at different epochs " + Arrays.toString( firstEpoch ) ) ;
+			}
+			if( firstEpoch[0] > 0 ) {
+				log.info( "Islands resume at epoch {}", firstEpoch[0] ) ;
+			}
+
+			for( ; ; ) {
+				int message = island[0].in.readInt() ;
+				for( int i=1 ; i<islands ; i++ ) {
+					if( island[i].in.readInt() != message ) {
+						throw new IOException( "Islands are out of step at island " + i ) ;
+					}
+				}
+				if( message == DONE ) {
+					break ;
+				}
+				if( message != MIGRATE ) {
+					throw new IOException( "Unknown island message " + message ) ;
+				}
+
+				// each island's emigrants go to the next island
+				Genome migrants[][] = new Genome[ islands ][] ;
+				for( int i=0 ; i<islands ; i++ ) {
+					migrants[i] = new Genome[ island[i].in.readInt() ] ;
+					double best = Double.NEGATIVE_INFINITY ;
+					for( int j=0 ; j<migrants[i].length ; j++ ) {
+						best = Math.max( best, island[i].in.readDouble() ) ;
+						migrants[i][j] = Genome.read( island[i].in ) ;
+					}
+					log.info( "Island {} sent {} migrants, best {}", i, migrants[i].length, best ) ;
+				}
+				for( int i=0 ; i<islands ; i++ ) {
+					Genome in[] = migrants[ ( i + islands - 1 ) % islands ] ;
+					island[i].out.writeInt( in.length ) ;
+					for( Genome g : in ) {
+						g.write( island[i].out ) ;
+					}
+					island[i].out.flush() ;
+				}
+			}
+
+			Genome best = null ;
+			float bestWeights[] = null ;
+			double bestScore = Double.NEGATIVE_INFINITY ;
+			for( int i=0 ; i<islands ; i++ ) {
+				double score = island[i].in.readDouble() ;
+				Genome g = Genome.read( island[i].in ) ;
+				float weights[] = new float[ island[i].in.readInt() ] ;
+				for( int j=0 ; j<weights.length ; j++ ) {
+					weights[j] = island[i].in.readFloat() ;
+				}
+				log.info( "Island {} best score {}", i, score ) ;
+				if( best == null || score > bestScore ) {
+					best = g ;
+					bestWeights = weights ;
+					bestScore = score ;
+				}
+			}
+			log.info( "Best island score = {}", bestScore ) ;
+
+			// the genome's weights are rounded, put back the exact ones
+			Brain rc = new Brain( Options.TICK_PERIOD, best ) ;
+			Synapses synapses = rc.getSynapses() ;
+			if( bestWeights.length != synapses.nnz() ) {
+				throw new IOException( "Best island sent " + bestWeights.length + " weights for " + synapses.nnz() + " synapses" ) ;
+			}
+			for( int i=0 ; i<bestWeights.length ; i++ ) {
+				synapses.setWeight( i, bestWeights[i] ) ;
+			}
+
+			for( Process p : local ) {
+				p.waitFor() ;
+			}
+			return rc ;
+		} finally {
+			for( Island i : island ) {
+				if( i != null ) {
+					i.socket.close() ;
+				}
+			}
+			for( Process p : local ) {
+				p.destroy() ;
+			}
+		}
+	}
+
+
+	/**
+	 * Start a worker JVM with this one's command line. The cores
+	 * are shared between the local workers unless told otherwise.
+	 */
+	private static Process startWorker( int port, int numLocal ) throws IOException {
+		List<String> command = new ArrayList<>() ;
+		command.add( System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "java" ) ;
+		command.add( "-cp" ) ;
+		command.add( System.getProperty( "java.class.path" ) ) ;
+		command.add( Main.class.getName() ) ;
+		command.addAll( Arrays.asList( Options.ARGS ) ) ;
+		if( command.stream().noneMatch( a -> a.startsWith( "--evolution-threads" ) ) ) {
+			command.add( "--evolution-threads" ) ;
+			command.add( String.valueOf( Math.max( 1, Options.EVOLUTION_THREADS / numLocal ) ) ) ;
+		}
+		command.add( "--worker" ) ;
+		command.add( "localhost:" + port ) ;
+		return new ProcessBuilder( command ).inheritIO().start() ;
+	}
+
+
+	private static class Island {
+		final Socket socket ;
+		final DataInputStream in ;
+		final DataOutputStream out ;
+
+		Island( Socket socket ) throws IOException {
+			this.socket = socket ;
+			this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) ) ;
+			this.out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) ) ;
+		}
+	}
+}
@@ -12,10 +12,17 @@ public class Main {
 	final static Logger log = LoggerFactory.getLogger( Main.class ) ;
 
 	final static Random rng = new Random( 660 ) ;
+	final static int QUANTIZE_TEST_TICKS = 1000 ;	// ticks to show each pattern when measuring accuracy
 	
 	public static void main(String[] args) {
 		try {
 			Options.parseCommandLine( args ) ;			
+
+			// a worker evolves one island, then leaves
+			if( Options.WORKER != null ) {
+				Islands.work( Options.WORKER ) ;
+				return ;
+			}
 			
 			boolean fileExists = false ;
 			if( Options.parameterFile !=null ) {
@@ -38,14 +45,32 @@ public class Main {
 			}
 
 			if( Options.evolve ) {
-				final Evolution evolution = new Evolution( Options.TICK_PERIOD, Options.SIMULATIONS, Options.MUTATION, Options.EPOCHS, Options.POPULATION, Options.BATCH_SIZE ) ;
-				brain = evolution.evolve( Options.TestPatterns, Options.TICK_PERIOD, 6, 10, Options.dims[0], Options.dims[1] ) ;
+				if( Options.ISLANDS > 0 ) {
+					brain = Islands.coordinate( Options.ISLANDS, Options.LOCAL_ISLANDS, Options.ISLAND_PORT, Options.SEED, 6, 10, Options.dims[0], Options.dims[1] ) ;
+				} else {
+					final Evolution evolution = Evolution.fromOptions( Options.SEED ) ;
+					brain = evolution.evolve( Options.TestPatterns, Options.TICK_PERIOD, 6, 10, Options.dims[0], Options.dims[1] ) ;
+				}
 				
 				if( Options.parameterFile != null ) {
 					brain.save( Options.parameterFile ) ;
 				}
 			}
 
+			brain.setEventDriven( !Options.dense ) ;
+			brain.setThreads( Options.THREADS ) ;
+			brain.setOnlineLearning( Options.online ) ;
+			brain.setTraceStdp( Options.traces ) ;
+			brain.setRateTau( Options.RATE_TAU ) ;
+			if( Options.QUANTIZE > 0 ) {
+				double full = brain.accuracy( Options.TestPatterns, QUANTIZE_TEST_TICKS ) ;
+				brain.resetNeurons() ;
+				brain.setQuantized( Options.QUANTIZE ) ;
+				double quantized = brain.accuracy( Options.TestPatterns, QUANTIZE_TEST_TICKS ) ;
+				brain.resetNeurons() ;
+				log.info( "Accuracy {} bit {} - full precision {} - delta {}", Options.QUANTIZE, quantized, full, quantized - full ) ;
+			}
+
 			@SuppressWarnings("resource")
 			Monitor m = new Monitor( brain ) ;
 			m.start();
@@ -81,7 +106,7 @@ public class Main {
 				
 				// If necessary - update history for GUI
 				brain.follow() ;
-				if( Options.train ) {
+				if( Options.train && !brain.isQuantized() ) {
 					brain.train( patternIndex ) ;
 				}
 				// -------------------------------------------------
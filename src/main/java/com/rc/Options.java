@@ -24,16 +24,38 @@ public class Options {
 	public static int SIMULATIONS      = 100 ;
 	public static double TICK_PERIOD   = .3 ;   // each clock tick in milliseconds
 	public static double MUTATION      = 0.01 ;
+	public static double STRUCTURE_MUTATION = 0 ; // chance of flipping each bit of a count or row, 0 keeps the synapse layout
+	public static double RACE_CONFIDENCE = 0 ;  // confidence needed to drop a brain early, 0 evaluates every brain fully
+	public static int RACE_ROUNDS      = 10 ;   // score checks per epoch when racing
+	public static int FITNESS_CACHE    = 1000 ; // genome scores remembered during evolution, 0 to re-evaluate
+	public static int CROSSOVER        = 0 ;    // crossover points, 0 picks each number from either parent
+	public static int ISLANDS          = 0 ;    // coordinate this many island populations, 0 to evolve here
+	public static int LOCAL_ISLANDS    = -1 ;   // islands started as local JVMs, -1 for all of them
+	public static int ISLAND_PORT      = 0 ;    // coordinator port, 0 for any free port
+	public static int MIGRATION        = 5 ;    // epochs between migrations
+	public static int MIGRANTS         = 2 ;    // genomes sent by each island per migration
+	public static String WORKER        = null ; // coordinator host:port when this is an island worker
+	public static String CHECKPOINT    = null ; // file the evolving population is saved to
+	public static int CHECKPOINT_INTERVAL = 1 ; // epochs between checkpoints
+	static String ARGS[] ;                      // the command line, passed on to local workers
 	public static long DELAY_INTERVAL  = 50 ;   // absolute time between sends to GUI
+	public static int THREADS          = 1 ;    // threads used to step one brain
+	public static int EVOLUTION_THREADS = Runtime.getRuntime().availableProcessors() ;	// brains evolved at once
+	public static double RATE_TAU      = 200 ;  // mS time constant of firing rates
+	public static long SEED            = 660 ;  // seed for evolution, each brain gets its own stream
+	public static int QUANTIZE         = 0 ;    // bits of frozen inference weights, 0 for full precision
 
 	public static boolean train 		= false ;
 	public static boolean evolve 		= false ;
+	public static boolean steadyState 	= false ;
+	public static boolean resume 		= false ;
 	public static boolean clearFile 	= false ;
+	public static boolean dense 		= false ;
+	public static boolean online 		= false ;
+	public static boolean traces 		= false ;
 	public static String  parameterFile = null ;
 	public static int 	  dims[] ;
 	
-	public static int FIXED_PARAMS[]  ;
-	
 	// static double [][] TestPatterns = {
 	// 	{ 0.5, 0.3, 0.6, 0.1, 0.9, 0.9 },
 	// 	{ 0.9, 0.9, 0.9, 0.1, 0.1, 0.1 },
@@ -59,6 +81,7 @@ public class Options {
 
 	public static void parseCommandLine(String[] args) {
 		
+		ARGS = args ;
 		OptionParser parser = new OptionParser();
 		
 		parser.acceptsAll( asList("f", "file") , "The parameters in json format" ).withRequiredArg().ofType( String.class ) ;
@@ -69,10 +92,33 @@ public class Options {
 		parser.accepts( "epochs" , "Number of epochs to run" ).withRequiredArg().ofType( Integer.class ) ; 
 		parser.accepts( "clear" , "Delete existing parameters" ) ; 
 		parser.accepts( "train" , "Train the network" ) ;
+		parser.acceptsAll( asList("t", "threads") , "Threads used to step a single brain" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "evolution-threads" , "Threads used to evolve the population, each runs one brain at a time" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "rate-tau" , "Time constant of the firing rate average (mS)" ).withRequiredArg().ofType( Double.class ) ;
+		parser.accepts( "seed" , "Random seed, the same seed evolves the same brains" ).withRequiredArg().ofType( Long.class ) ;
+		parser.accepts( "quantize" , "Freeze weights for inference as 8 or 16 bit fixed point" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "online" , "Apply weight changes every tick, rather than each epoch" ) ;
+		parser.accepts( "traces" , "Train with trace based STDP" ) ;
+		parser.accepts( "dense" , "Propagate spikes with a full matrix multiply each tick" ) ;
 		parser.accepts( "simulations" , "Number of simulations to run" ).withRequiredArg().ofType( Integer.class ) ;
 		parser.accepts( "batch" , "Batch size per simulation" ).withRequiredArg().ofType( Integer.class ) ;
 		parser.accepts( "population" , "Number of brains in the population" ).withRequiredArg().ofType( Integer.class ) ;
 		parser.accepts( "mutation" , "Mutation amount 0.0 - 1.0" ).withRequiredArg().ofType( Double.class ) ; 
+		parser.accepts( "structure-mutation" , "Mutation amount of the synapse layout 0.0 - 1.0" ).withRequiredArg().ofType( Double.class ) ;
+		parser.accepts( "race" , "Stop evaluating brains once out of contention with this confidence (e.g. 0.95)" ).withRequiredArg().ofType( Double.class ) ;
+		parser.accepts( "race-rounds" , "Score checks per epoch when racing" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "fitness-cache" , "Genome scores remembered during evolution, 0 evaluates every brain each epoch" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "steady-state" , "Evolve by replacing the worst brain as each child is scored, without epochs. Children already in the fitness cache aren't trained" ) ;
+		parser.accepts( "checkpoint" , "Save the evolving population to this file" ).withRequiredArg().ofType( String.class ) ;
+		parser.accepts( "checkpoint-interval" , "Epochs between population checkpoints" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "resume" , "Carry on evolving from the checkpoint file" ) ;
+		parser.accepts( "crossover" , "Crossover points, 0 for uniform crossover" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "islands" , "Evolve this many island populations, each in a worker process" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "local-islands" , "Islands to start as local worker JVMs, the rest connect with --worker" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "island-port" , "Port the island coordinator listens on" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "migration" , "Epochs between island migrations" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "migrants" , "Genomes each island sends per migration" ).withRequiredArg().ofType( Integer.class ) ;
+		parser.accepts( "worker" , "Evolve an island for the coordinator at host:port" ).withRequiredArg().ofType( String.class ) ;
 		parser.nonOptions( "Network dimensions ( up to 3 ) (e.g. 3 4, 2 2 2 )" ).ofType( Integer.class ) ; 
 		parser.accepts( "help", "This help" ).forHelp();
 		
@@ -92,12 +138,35 @@ public class Options {
 		if( options.has( "epochs" ) ) 		{ EPOCHS = (int) options.valueOf("epochs") ; }
 		if( options.has( "batch" ) ) 			{ BATCH_SIZE = (int) options.valueOf("batch") ; }
 		if( options.has( "mutation" ) ) 		{ MUTATION = (double) options.valueOf("mutation") ; }
+		if( options.has( "structure-mutation" ) ) { STRUCTURE_MUTATION = (double) options.valueOf("structure-mutation") ; }
+		if( options.has( "race" ) ) 			{ RACE_CONFIDENCE = (double) options.valueOf("race") ; }
+		if( options.has( "race-rounds" ) ) 	{ RACE_ROUNDS = (int) options.valueOf("race-rounds") ; }
+		if( options.has( "fitness-cache" ) ) 	{ FITNESS_CACHE = (int) options.valueOf("fitness-cache") ; }
+		if( options.has( "islands" ) ) 		{ ISLANDS = (int) options.valueOf("islands") ; }
+		if( options.has( "local-islands" ) ) 	{ LOCAL_ISLANDS = (int) options.valueOf("local-islands") ; }
+		if( options.has( "island-port" ) ) 	{ ISLAND_PORT = (int) options.valueOf("island-port") ; }
+		if( options.has( "migration" ) ) 		{ MIGRATION = (int) options.valueOf("migration") ; }
+		if( options.has( "migrants" ) ) 		{ MIGRANTS = (int) options.valueOf("migrants") ; }
+		if( options.has( "worker" ) ) 		{ WORKER = options.valueOf("worker").toString() ; }
+		if( options.has( "checkpoint" ) ) 	{ CHECKPOINT = options.valueOf("checkpoint").toString() ; }
+		if( options.has( "checkpoint-interval" ) ) { CHECKPOINT_INTERVAL = (int) options.valueOf("checkpoint-interval") ; }
+		if( options.has( "crossover" ) ) 		{ CROSSOVER = (int) options.valueOf("crossover") ; }
+		if( options.has( "threads" ) ) 		{ THREADS = (int) options.valueOf("threads") ; }
+		if( options.has( "evolution-threads" ) ) { EVOLUTION_THREADS = (int) options.valueOf("evolution-threads") ; }
+		if( options.has( "rate-tau" ) ) 		{ RATE_TAU = (double) options.valueOf("rate-tau") ; }
+		if( options.has( "seed" ) ) 			{ SEED = (long) options.valueOf("seed") ; }
+		if( options.has( "quantize" ) ) 		{ QUANTIZE = (int) options.valueOf("quantize") ; }
 		if( options.has( "update-delay" ) ) 	{ DELAY_INTERVAL = (long) options.valueOf("update-delay") ; }
 		if( options.has( "period" ) ) 		{ TICK_PERIOD = (int) options.valueOf("period milliseconds") ; }
 
 		clearFile = options.has("clear") ;
 		evolve    = options.has("evolve") ;
+		steadyState = options.has("steady-state") ;
+		resume    = options.has("resume") ;
 		train	  = options.has("train") ;
+		dense	  = options.has("dense") ;
+		online	  = options.has("online") ;
+		traces	  = options.has("traces") ;
 		
 		parameterFile = options.has("f") ? options.valueOf( "f" ).toString() : null ;
 
@@ -113,16 +182,13 @@ public class Options {
 		} else {
 			dims = new int[]{ 30, 80 } ;	// default if no size given
 		}
-		FIXED_PARAMS = new int[ dims.length + 1 ] ;
-		FIXED_PARAMS[0] = 0 ;
-		
 		StringJoiner sj = new StringJoiner( ", " ) ;
 		for( int i=0 ; i<dims.length ; i++ ) {
 			sj.add( String.valueOf(dims[i]) ) ;
-			FIXED_PARAMS[i+1] = i+1 ;
 		}
 		log.info("Layers        : {}", sj ) ;
 		log.info("Delay         : {}", DELAY_INTERVAL ) ;
+		log.info("Threads       : {}", THREADS ) ;
 		
 
 		if( evolve ) {
@@ -131,6 +197,21 @@ public class Options {
 			log.info("Batch Size    : {}", BATCH_SIZE );
 			log.info("Simulations   : {}", SIMULATIONS );
 			log.info("Mutation Rate : {}", MUTATION );				
+			log.info("Structure     : {}", STRUCTURE_MUTATION );
+			log.info("Crossover     : {}", CROSSOVER );
+			log.info("Steady state  : {}", steadyState );
+			log.info("Fitness cache : {}", FITNESS_CACHE );
+			if( RACE_CONFIDENCE > 0 ) {
+				log.info("Racing        : {} confidence, {} rounds", RACE_CONFIDENCE, RACE_ROUNDS );
+			}
+			log.info("Seed          : {}", SEED );
+			if( CHECKPOINT != null ) {
+				log.info("Checkpoint    : {} every {} epochs{}", CHECKPOINT, CHECKPOINT_INTERVAL, resume ? ", resuming" : "" );
+			}
+			log.info("Threads       : {}", EVOLUTION_THREADS );
+			if( ISLANDS > 0 ) {
+				log.info("Islands       : {} migrating {} every {} epochs", ISLANDS, MIGRANTS, MIGRATION );
+			}
 		}
 	}
 		
@@ -0,0 +1,146 @@
+package com.rc ;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A frozen, fixed point copy of the synapse weights for inference. Each
+ * column ( source neuron ) has its own scale, so a weight is
+ *
+ *	w = q * scale[col]		q in -127..127 or -32767..32767
+ *
+ * The indexes are shared with the @see Synapses it was made from, which
+ * drops its float weights while frozen. Weights are 1 or 2 bytes rather
+ * than 4, the products are still summed in floating point.
+ */
+class QuantizedSynapses {
+
+	private final int bits ;
+	private final Synapses synapses ;
+	private final IntBuffer colIdx ;
+	private final IntBuffer rows ;
+	private final float scale[] ;
+	private final byte q8[] ;			// null unless 8 bits
+	private final short q16[] ;		// null unless 16 bits
+
+
+	QuantizedSynapses( Synapses synapses, int bits ) {
+		if( bits != 8 && bits != 16 ) {
+			throw new IllegalArgumentException( "Weights can be quantized to 8 or 16 bits, not " + bits ) ;
+		}
+		this.bits = bits ;
+		this.synapses = synapses ;
+		this.colIdx = synapses.colIdx() ;
+		this.rows = synapses.rows() ;
+
+		int n = synapses.size() ;
+		int qmax = bits == 8 ? Byte.MAX_VALUE : Short.MAX_VALUE ;
+		FloatBuffer weights = synapses.weights() ;
+		this.scale = new float[ n ] ;
+		this.q8 = bits == 8 ? new byte[ synapses.nnz() ] : null ;
+		this.q16 = bits == 16 ? new short[ synapses.nnz() ] : null ;
+
+		for( int col=0 ; col<n ; col++ ) {
+			float max = 0 ;
+			for( int i=colIdx.get(col) ; i<colIdx.get(col+1) ; i++ ) {
+				max = Math.max( max, Math.abs( weights.get(i) ) ) ;
+			}
+			scale[col] = max / qmax ;
+			for( int i=colIdx.get(col) ; i<colIdx.get(col+1) ; i++ ) {
+				int q = max == 0 ? 0 : Math.round( weights.get(i) / scale[col] ) ;
+				if( bits == 8 ) {
+					q8[i] = (byte)q ;
+				} else {
+					q16[i] = (short)q ;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @return the weight in a slot, as a float
+	 */
+	float weight( int slot ) {
+		// the column is the last one starting at or before the slot
+		int lo = 0 ;
+		int hi = scale.length - 1 ;
+		while( lo < hi ) {
+			int mid = ( lo + hi + 1 ) >>> 1 ;
+			if( colIdx.get(mid) <= slot ) {
+				lo = mid ;
+			} else {
+				hi = mid - 1 ;
+			}
+		}
+		return ( bits == 8 ? q8[slot] : q16[slot] ) * scale[lo] ;
+	}
+
+
+	/**
+	 * @return every weight as a float, in slot order
+	 */
+	float[] dequantize() {
+		float rc[] = new float[ bits == 8 ? q8.length : q16.length ] ;
+		for( int col=0 ; col<scale.length ; col++ ) {
+			for( int i=colIdx.get(col) ; i<colIdx.get(col+1) ; i++ ) {
+				rc[i] = ( bits == 8 ? q8[i] : q16[i] ) * scale[col] ;
+			}
+		}
+		return rc ;
+	}
+
+
+	/**
+	 * Add a spike from one source neuron into the currents of its targets
+	 *
+	 * @param col the source neuron
+	 * @param v the spike value
+	 */
+	void scatter( int col, double v, double currents[] ) {
+		final float sv = (float)( scale[col] * v ) ;
+		final int idx1 = colIdx.get(col+1) ;
+		if( bits == 8 ) {
+			for( int i=colIdx.get(col) ; i<idx1 ; i++ ) {
+				currents[ rows.get(i) ] += q8[i] * sv ;
+			}
+		} else {
+			for( int i=colIdx.get(col) ; i<idx1 ; i++ ) {
+				currents[ rows.get(i) ] += q16[i] * sv ;
+			}
+		}
+	}
+
+
+	/**
+	 * As @see #scatter but only into the targets in [from,to)
+	 */
+	void gather( int col, double v, double currents[], int from, int to ) {
+		final float sv = (float)( scale[col] * v ) ;
+		final int idx1 = colIdx.get(col+1) ;
+		int i = synapses.lowerBound( colIdx.get(col), idx1, from ) ;
+		if( bits == 8 ) {
+			for( int r ; i<idx1 && ( r = rows.get(i) )<to ; i++ ) {
+				currents[r] += q8[i] * sv ;
+			}
+		} else {
+			for( int r ; i<idx1 && ( r = rows.get(i) )<to ; i++ ) {
+				currents[r] += q16[i] * sv ;
+			}
+		}
+	}
+
+
+	/**
+	 * Dense multiply, out = A * in
+	 */
+	void mult( double in[], double out[] ) {
+		Arrays.fill( out, 0, scale.length, 0.0 ) ;
+		for( int col=0 ; col<scale.length ; col++ ) {
+			if( in[col] != 0.0 ) {
+				scatter( col, in[col], out ) ;
+			}
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package com.rc ;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The weights of every synapse in a brain. Weights are floats and the
+ * indexes ints, so a synapse costs 8 bytes in the column view and 8
+ * more in the row view.
+ *
+ * The weights are stored once, in column ( CSC ) order, columns are the
+ * source neuron and rows the target. Each column's rows are sorted. The
+ * row ( CSR ) view holds the column and the slot of each weight, so it
+ * stays valid as weights change. Spikes only need the column view, the
+ * row view is built the first time it is used, e.g. by training.
+ *
+ * The arrays are nio buffers, read with absolute gets. A brain built in
+ * memory wraps heap arrays, a brain reopened from a @see BrainImage
+ * reads the mapped file directly, so its synapses live outside the heap.
+ * The row view is held the same way as the column view, off heap views
+ * get direct buffers.
+ *
+ * A trained brain's weights can be frozen to 8 or 16 bit fixed point,
+ * @see QuantizedSynapses, the float weights are dropped until thawed.
+ *
+ * The structure is fixed once built, training only changes weights.
+ * Iterate a view with plain loops, e.g. every synapse out of a neuron
+ * <pre>
+ *	for( int s=syn.colStart(from) ; s&lt;syn.colEnd(from) ; s++ ) {
+ *		int to = syn.row(s) ;
+ *		float w = syn.weight(s) ;
+ * </pre>
+ */
+public class Synapses {
+
+	private final int size ;
+	private final int nnz ;
+
+	// column view - owns the weights
+	private final IntBuffer colIdx ;
+	private final IntBuffer rows ;
+	private FloatBuffer weights ;			// null while frozen
+	private QuantizedSynapses frozen ;		// null unless frozen
+
+	// row view - null until it's needed
+	private volatile RowView rowView ;
+
+
+	/**
+	 * Wrap column ( CSC ) arrays, rows must be sorted in each column.
+	 * The arrays are used as is, not copied.
+	 *
+	 * @param size the number of neurons
+	 * @param colIdx where each column starts in rows & weights, size+1 long
+	 * @param rows the target of each synapse
+	 * @param weights the weight of each synapse
+	 */
+	Synapses( int size, int colIdx[], int rows[], float weights[] ) {
+		this( size, IntBuffer.wrap( colIdx ), IntBuffer.wrap( rows ), FloatBuffer.wrap( weights ) ) ;
+	}
+
+
+	/**
+	 * Wrap column ( CSC ) buffers, e.g. sections of a mapped file. Only
+	 * absolute gets & puts are used, so the buffers' positions don't matter.
+	 */
+	Synapses( int size, IntBuffer colIdx, IntBuffer rows, FloatBuffer weights ) {
+		this.size = size ;
+		this.nnz = colIdx.get( size ) ;
+		this.colIdx = colIdx ;
+		this.rows = rows ;
+		this.weights = weights ;
+	}
+
+
+	/**
+	 * Build the row view, by a counting sort of the column view
+	 */
+	private synchronized RowView rowView() {
+		RowView rc = rowView ;
+		if( rc != null ) {
+			return rc ;
+		}
+		boolean direct = rows.isDirect() ;
+		IntBuffer rowIdx = allocate( size+1, direct ) ;
+		IntBuffer cols = allocate( nnz, direct ) ;
+		IntBuffer slots = allocate( nnz, direct ) ;
+
+		for( int i=0 ; i<nnz ; i++ ) {
+			int r = rows.get(i) + 1 ;
+			rowIdx.put( r, rowIdx.get(r) + 1 ) ;
+		}
+		for( int r=0 ; r<size ; r++ ) {
+			rowIdx.put( r+1, rowIdx.get(r+1) + rowIdx.get(r) ) ;
+		}
+		// columns are visited in order, so each row's columns are sorted
+		IntBuffer next = allocate( size, direct ) ;
+		for( int r=0 ; r<size ; r++ ) {
+			next.put( r, rowIdx.get(r) ) ;
+		}
+		for( int col=0 ; col<size ; col++ ) {
+			for( int i=colIdx.get(col) ; i<colIdx.get(col+1) ; i++ ) {
+				int r = rows.get(i) ;
+				int ix = next.get(r) ;
+				next.put( r, ix+1 ) ;
+				cols.put( ix, col ) ;
+				slots.put( ix, i ) ;
+			}
+		}
+		rowView = rc = new RowView( rowIdx, cols, slots ) ;
+		return rc ;
+	}
+
+
+	private static IntBuffer allocate( int n, boolean direct ) {
+		return direct
+				? ByteBuffer.allocateDirect( 4 * n ).order( ByteOrder.nativeOrder() ).asIntBuffer()
+				: IntBuffer.allocate( n ) ;
+	}
+
+
+	public int size() { return size ; }
+	public int nnz() { return nnz ; }
+	public boolean isDirect() { return rows.isDirect() ; }
+	public boolean isFrozen() { return frozen != null ; }
+
+	//---------------------------------------
+	// column view, indexed by slot
+	public int colStart( int from ) { return colIdx.get(from) ; }
+	public int colEnd( int from ) { return colIdx.get(from+1) ; }
+	public int row( int slot ) { return rows.get(slot) ; }
+	public float weight( int slot ) { return weights != null ? weights.get(slot) : frozen.weight(slot) ; }
+	public void setWeight( int slot, float w ) { writableWeights().put( slot, w ) ; }
+
+	//---------------------------------------
+	// row view, ix is the position in the row
+	public int rowStart( int to ) { return rowIdx().get(to) ; }
+	public int rowEnd( int to ) { return rowIdx().get(to+1) ; }
+	public int col( int ix ) { return rowCols().get(ix) ; }
+	public int rowSlot( int ix ) { return rowSlots().get(ix) ; }
+	boolean hasRowView() { return rowView != null ; }
+
+	// the raw buffers for the hot loops and views
+	IntBuffer colIdx() { return colIdx ; }
+	IntBuffer rows() { return rows ; }
+	FloatBuffer weights() { return weights ; }
+	IntBuffer rowIdx() { RowView v = rowView ; return ( v == null ? rowView() : v ).rowIdx ; }
+	IntBuffer rowCols() { RowView v = rowView ; return ( v == null ? rowView() : v ).cols ; }
+	IntBuffer rowSlots() { RowView v = rowView ; return ( v == null ? rowView() : v ).slots ; }
+
+
+	private FloatBuffer writableWeights() {
+		if( weights == null ) {
+			throw new IllegalStateException( "Synapse weights are frozen" ) ;
+		}
+		return weights ;
+	}
+
+
+	/**
+	 * Replace the float weights with a fixed point copy. The float
+	 * weights are dropped, so they no longer take any memory.
+	 *
+	 * @param bits 8 or 16
+	 * @return the frozen weights
+	 */
+	QuantizedSynapses freeze( int bits ) {
+		if( frozen != null ) {
+			thaw() ;
+		}
+		frozen = new QuantizedSynapses( this, bits ) ;
+		weights = null ;
+		return frozen ;
+	}
+
+
+	/**
+	 * Go back to float weights, they are the frozen weights as floats,
+	 * the weights from before freezing are gone.
+	 */
+	void thaw() {
+		if( frozen != null ) {
+			float w[] = frozen.dequantize() ;
+			weights = isDirect()
+					? ByteBuffer.allocateDirect( 4 * nnz ).order( ByteOrder.nativeOrder() ).asFloatBuffer().put( w )
+					: FloatBuffer.wrap( w ) ;
+			frozen = null ;
+		}
+	}
+
+
+	/**
+	 * Find where a row is, or would be, in part of the column view
+	 *
+	 * @return the first slot in [from,to) with a row of at least key
+	 */
+	int lowerBound( int from, int to, int key ) {
+		int lo = from ;
+		int hi = to ;
+		while( lo < hi ) {
+			int mid = ( lo + hi ) >>> 1 ;
+			if( rows.get(mid) < key ) {
+				lo = mid + 1 ;
+			} else {
+				hi = mid ;
+			}
+		}
+		return lo ;
+	}
+
+
+	/**
+	 * Find the slot of a synapse, by a binary search of the column
+	 *
+	 * @return the slot or -1 if there is no such synapse
+	 */
+	public int slot( int to, int from ) {
+		int end = colEnd(from) ;
+		int ix = lowerBound( colStart(from), end, to ) ;
+		return ix < end && rows.get(ix) == to ? ix : -1 ;
+	}
+
+	public boolean isAssigned( int to, int from ) {
+		return slot( to, from ) >= 0 ;
+	}
+
+	/**
+	 * @return the weight from one neuron to another, 0 if they're not connected
+	 */
+	public float get( int to, int from ) {
+		int slot = slot( to, from ) ;
+		return slot < 0 ? 0f : weight(slot) ;
+	}
+
+	/**
+	 * @return a copy of every weight, in slot order
+	 */
+	public float[] copyWeights() {
+		if( weights == null ) {
+			return frozen.dequantize() ;
+		}
+		float rc[] = new float[ nnz ] ;
+		( (FloatBuffer)weights.duplicate().rewind() ).get( rc ) ;
+		return rc ;
+	}
+
+	public double sum() {
+		double rc = 0 ;
+		for( int i=0 ; i<nnz ; i++ ) {
+			rc += weight(i) ;
+		}
+		return rc ;
+	}
+
+
+	/**
+	 * Dense multiply, out = A * in
+	 */
+	public void mult( double in[], double out[] ) {
+		if( weights == null ) {
+			frozen.mult( in, out ) ;
+			return ;
+		}
+		Arrays.fill( out, 0, size, 0.0 ) ;
+		for( int col=0 ; col<size ; col++ ) {
+			double v = in[col] ;
+			if( v != 0.0 ) {
+				int idx1 = colIdx.get(col+1) ;
+				for( int i=colIdx.get(col) ; i<idx1 ; i++ ) {
+					out[ rows.get(i) ] += weights.get(i) * v ;
+				}
+			}
+		}
+	}
+
+
+	private static class RowView {
+		final IntBuffer rowIdx ;
+		final IntBuffer cols ;		// the column of each synapse in the row
+		final IntBuffer slots ;		// where each synapse's weight is
+
+		RowView( IntBuffer rowIdx, IntBuffer cols, IntBuffer slots ) {
+			this.rowIdx = rowIdx ;
+			this.cols = cols ;
+			this.slots = slots ;
+		}
+	}
+
+
+	/**
+	 * Collects synapses in any order, then builds the column arrays
+	 * with two counting sorts - by row then by column. Adding the same
+	 * synapse twice keeps the last weight.
+	 */
+	public static class Builder {
+		private final int size ;
+		private int to[] ;
+		private int from[] ;
+		private float w[] ;
+		private int count ;
+
+		public Builder( int size ) {
+			this( size, 16 ) ;
+		}
+
+		public Builder( int size, int capacity ) {
+			this.size = size ;
+			this.to = new int[ Math.max( 1, capacity ) ] ;
+			this.from = new int[ to.length ] ;
+			this.w = new float[ to.length ] ;
+			this.count = 0 ;
+		}
+
+		public Builder add( int to, int from, float weight ) {
+			if( count == this.to.length ) {
+				int capacity = count * 2 ;
+				this.to = Arrays.copyOf( this.to, capacity ) ;
+				this.from = Arrays.copyOf( this.from, capacity ) ;
+				this.w = Arrays.copyOf( this.w, capacity ) ;
+			}
+			this.to[count] = to ;
+			this.from[count] = from ;
+			this.w[count] = weight ;
+			count++ ;
+			return this ;
+		}
+
+		/**
+		 * Add all the synapses of another builder, after these
+		 */
+		public Builder addAll( Builder other ) {
+			int capacity = count + other.count ;
+			if( capacity > to.length ) {
+				this.to = Arrays.copyOf( this.to, capacity ) ;
+				this.from = Arrays.copyOf( this.from, capacity ) ;
+				this.w = Arrays.copyOf( this.w, capacity ) ;
+			}
+			System.arraycopy( other.to, 0, to, count, other.count ) ;
+			System.arraycopy( other.from, 0, from, count, other.count ) ;
+			System.arraycopy( other.w, 0, w, count, other.count ) ;
+			count = capacity ;
+			return this ;
+		}
+
+		public Synapses build() {
+			// stable sort by row, then by column, so each column's rows are sorted
+			int byRow[] = new int[ count ] ;
+			int next[] = offsets( to ) ;
+			for( int i=0 ; i<count ; i++ ) {
+				byRow[ next[ to[i] ]++ ] = i ;
+			}
+			int colIdx[] = offsets( from ) ;
+			next = Arrays.copyOf( colIdx, size ) ;
+			int order[] = new int[ count ] ;
+			for( int i=0 ; i<count ; i++ ) {
+				int ix = byRow[i] ;
+				order[ next[ from[ix] ]++ ] = ix ;
+			}
+
+			// duplicates are now adjacent, the last added is last
+			int rows[] = new int[ count ] ;
+			float weights[] = new float[ count ] ;
+			int nnz = 0 ;
+			for( int c=0 ; c<size ; c++ ) {
+				int start = colIdx[c] ;
+				int end = colIdx[c+1] ;
+				colIdx[c] = nnz ;
+				for( int i=start ; i<end ; i++ ) {
+					int ix = order[i] ;
+					if( i+1 < end && to[ order[i+1] ] == to[ix] ) {
+						continue ;		// a later weight for the same synapse
+					}
+					rows[nnz] = to[ix] ;
+					weights[nnz] = w[ix] ;
+					nnz++ ;
+				}
+			}
+			colIdx[size] = nnz ;
+			if( nnz < count ) {
+				rows = Arrays.copyOf( rows, nnz ) ;
+				weights = Arrays.copyOf( weights, nnz ) ;
+			}
+			return new Synapses( size, colIdx, rows, weights ) ;
+		}
+
+		/**
+		 * @return where each key's entries start, size+1 long
+		 */
+		private int[] offsets( int keys[] ) {
+			int rc[] = new int[ size+1 ] ;
+			for( int i=0 ; i<count ; i++ ) {
+				rc[ keys[i] + 1 ]++ ;
+			}
+			for( int k=0 ; k<size ; k++ ) {
+				rc[k+1] += rc[k] ;
+			}
+			return rc ;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.rc ;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.rc.neurons.InputNeuron;
+import com.rc.neurons.Neuron;
+import com.rc.neurons.NeuronStore;
+import com.rc.neurons.OutputNeuron;
+
+/**
+ * Trace based spike timing dependent plasticity. Each neuron keeps a
+ * pre and a post synaptic trace that jumps on a spike and decays
+ * exponentially.
+ *
+ *	post spike - potentiate each incoming synapse by the source's pre trace
+ *	pre spike  - depress each outgoing synapse by the target's post trace
+ *
+ * so only the synapses of neurons that spiked are visited. Traces are
+ * decayed lazily, from the tick they were last touched, using tables
+ * of exp( -ticks * tickPeriod / tau ). The tables are as long as the
+ * learning windows, older traces count as zero.
+ *
+ * All neurons share the same learning constants.
+ */
+class TraceStdp {
+
+	private final double learningRate ;
+	private final double ltpDecay[] ;
+	private final double ltdDecay[] ;
+
+	private final double preTrace[] ;
+	private final double postTrace[] ;
+	private final int lastUpdate[] ;		// tick when each neuron's traces were last decayed
+	private final boolean plastic[] ;		// false if synapses onto the neuron aren't trained here
+
+	private final EdgeList edges ;
+	private int tick ;
+
+
+	TraceStdp( Neuron neurons[], double tickPeriod ) {
+		Neuron n = neurons[0] ;
+		this.learningRate = n.getLearningRate() ;
+		this.ltpDecay = decayTable( tickPeriod, n.getLearningRateTauLTP(), n.getLearningWindowLTP() ) ;
+		this.ltdDecay = decayTable( tickPeriod, n.getLearningRateTauLTD(), n.getLearningWindowLTD() ) ;
+
+		this.preTrace = new double[ neurons.length ] ;
+		this.postTrace = new double[ neurons.length ] ;
+		this.lastUpdate = new int[ neurons.length ] ;
+		this.plastic = new boolean[ neurons.length ] ;
+		for( int i=0 ; i<neurons.length ; i++ ) {
+			// inputs aren't trained, outputs are supervised
+			plastic[i] = !( neurons[i] instanceof InputNeuron || neurons[i] instanceof OutputNeuron ) ;
+		}
+		this.edges = new EdgeList() ;
+		this.tick = 0 ;
+	}
+
+
+	private static double[] decayTable( double tickPeriod, double tau, double window ) {
+		int n = (int)Math.ceil( window / tickPeriod ) + 1 ;
+		double rc[] = new double[ n ] ;
+		for( int i=0 ; i<n ; i++ ) {
+			rc[i] = Math.exp( -i * tickPeriod / tau ) ;
+		}
+		return rc ;
+	}
+
+
+	/**
+	 * Apply one tick of learning, for the neurons spiking in the store
+	 */
+	void train( Brain brain, NeuronStore store ) {
+		tick++ ;
+		final long spikes[] = store.getSpikes() ;
+		final int offset = store.spikeOffset(0) ;
+
+		for( int w=0 ; w<store.words() ; w++ ) {
+			for( long bits=spikes[offset+w] ; bits!=0 ; bits &= bits-1 ) {
+				int i = (w<<6) + Long.numberOfTrailingZeros( bits ) ;
+				if( plastic[i] ) {
+					brain.getInputsTo( i, edges ) ;
+					for( int j=0 ; j<edges.size() ; j++ ) {
+						int source = edges.id(j) ;
+						decay( source ) ;
+						if( preTrace[source] > 0 ) {
+							brain.addTraining( edges.slot(j), learningRate * preTrace[source] ) ;
+						}
+					}
+				}
+				brain.getOutputsFrom( i, edges ) ;
+				for( int j=0 ; j<edges.size() ; j++ ) {
+					int target = edges.id(j) ;
+					if( plastic[target] ) {
+						decay( target ) ;
+						if( postTrace[target] > 0 ) {
+							brain.addTraining( edges.slot(j), -learningRate * postTrace[target] ) ;
+						}
+					}
+				}
+			}
+		}
+
+		// traces jump after the updates, so a pair in the same tick doesn't count
+		for( int w=0 ; w<store.words() ; w++ ) {
+			for( long bits=spikes[offset+w] ; bits!=0 ; bits &= bits-1 ) {
+				int i = (w<<6) + Long.numberOfTrailingZeros( bits ) ;
+				decay( i ) ;
+				preTrace[i] += 1.0 ;
+				postTrace[i] += 1.0 ;
+			}
+		}
+	}
+
+
+	/**
+	 * Bring a neuron's traces up to date
+	 */
+	private void decay( int i ) {
+		int age = tick - lastUpdate[i] ;
+		if( age > 0 ) {
+			preTrace[i] *= age < ltpDecay.length ? ltpDecay[age] : 0.0 ;
+			postTrace[i] *= age < ltdDecay.length ? ltdDecay[age] : 0.0 ;
+			lastUpdate[i] = tick ;
+		}
+	}
+
+
+	/**
+	 * Write the traces, so a brain of the same neurons can carry on
+	 * learning exactly from here, @see #readState
+	 */
+	void writeState( DataOutput out ) throws IOException {
+		out.writeInt( preTrace.length ) ;
+		out.writeInt( tick ) ;
+		for( int i=0 ; i<preTrace.length ; i++ ) {
+			out.writeDouble( preTrace[i] ) ;
+			out.writeDouble( postTrace[i] ) ;
+			out.writeInt( lastUpdate[i] ) ;
+		}
+	}
+
+
+	void readState( DataInput in ) throws IOException {
+		int n = in.readInt() ;
+		if( n != preTrace.length ) {
+			throw new IOException( "Traces are for " + n + " neurons, not " + preTrace.length ) ;
+		}
+		tick = in.readInt() ;
+		for( int i=0 ; i<n ; i++ ) {
+			preTrace[i] = in.readDouble() ;
+			postTrace[i] = in.readDouble() ;
+			lastUpdate[i] = in.readInt() ;
+		}
+	}
+
+
+	void reset() {
+		for( int i=0 ; i<preTrace.length ; i++ ) {
+			preTrace[i] = 0 ;
+			postTrace[i] = 0 ;
+			lastUpdate[i] = tick ;
+		}
+	}
+}
@@ -1,8 +1,7 @@
 package com.rc.neurons ;
 
-import org.ejml.data.DMatrixSparseCSC;
-
 import com.rc.Brain;
+import com.rc.EdgeList;
 
 
 public class InputNeuron extends NeuronRZ {
@@ -39,7 +38,7 @@ public class InputNeuron extends NeuronRZ {
 
 	
 	@Override
-	public void train( Brain brain, DMatrixSparseCSC training  ) {
+	public void train( Brain brain, EdgeList sources ) {
 		// don't train inputs
 	}
 
@@ -1,48 +1,31 @@
 package com.rc.neurons ;
 
-import java.util.Random;
-
-import org.ejml.data.DMatrixSparseCSC;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rc.Brain;
+import com.rc.EdgeList;
 
 /**
  * This is the base code for a Neuron. Each real neuron type will define the ODE
  * params A,B,C & D .
  *
+ * The transient state is held in a @see NeuronStore, a neuron is a view
+ * of one slot in that store.
+ *
  * @link http://www.izhikevich.org/human_brain_simulation/Blue_Brain.htm
  * @link http://www.izhikevich.org/publications/spikes.htm
  */
 abstract public class Neuron  {
 
-    //-------------------------------------------
-    // constants
-    private final static int NUM_SPIKES_TO_RECORD = 25 ;
-
     //-------------------------------------------
     // shared utils
     final static protected Logger log = LoggerFactory.getLogger( Neuron.class ) ;
-    final static protected Random rng = new Random() ;
 
     //-------------------------------------------
-    // transient state data
-	private 		double 		currentPotential ;
-	private 		boolean		isSpiking ;
-
-	private final 	double 		lastSpikes[] ;
-	private 	  	int 		lastSpikeIndex ;
-
-	protected 		double		u ;
-
-    private 	  	double 		lastStepClock ;
-    private 	  	double		frequency ;
-    private         double 	    spikeValue  ;
-
-	private int historyIndex ;
-	private final double history[] ;
+    // transient state data - lives in a store, usually owned by a brain
+	private 		NeuronStore	store ;			// null until first used or attached
+	private 		int			slot ;
 
     //-------------------------------------------
 	// genome static data
@@ -54,6 +37,7 @@ abstract public class Neuron  {
 	protected final double	d ;		
 
 	protected final double 	threshold  ;
+	private   final double 	spikeValue  ;
 
     protected final double 	learningRate ;
     protected final double 	learningRateTauLTP ;
@@ -73,8 +57,6 @@ abstract public class Neuron  {
 		this.c = C ;
 		this.d = D ;
 		
-		this.u = 0 ;
-		
 		this.threshold = -30 ;   			// spike triggered when internal potential hit this value
 		this.spikeValue = 30 ; 	    		// height of spike pulse
 
@@ -84,57 +66,57 @@ abstract public class Neuron  {
         this.learningWindowLTP = 20 ;       // ms for LTP window
         this.learningWindowLTD = 40 ;       // mS for LTD window
 
-		this.currentPotential = -50 ;
-		this.lastSpikeIndex = 0 ;
-		this.lastSpikes = new double[NUM_SPIKES_TO_RECORD] ;
-
-		history = new double[256]  ;
-		historyIndex = 0 ;
+		// a brain attaches its neurons straight away, so a neuron
+		// only gets a private store if it's used on its own
+		this.store = null ;
+		this.slot = 0 ;
 	}
 
 
-	public void step( double potential, double clock ) {
-		if( isSpiking() ) {
-			reset() ;
-		} else {
-			// convert potential in mV to current 
-			double i = potential * 3.0 ;
-			//--------------------------------------------
-			// ODE params are in millivolts & milliseconds
-			//
-			double dt = (clock - lastStepClock)  ;
-
-			double cp = currentPotential ;
-
-			double v = (0.04 * cp + 5) * cp + 140 - u + i ;
-			this.u += dt * this.a * ( this.b * cp - this.u ) ;
-			this.currentPotential += dt * v ;
-
-			checkForSpike( clock ) ;
+	private NeuronStore store() {
+		if( store == null ) {
+			store = new NeuronStore( 1 ) ;
+			store.init( slot, a, b, c, d, threshold, getSpikeValue() ) ;
 		}
-		lastStepClock = clock ;
+		return store ;
+	}
+
 
-		history[historyIndex] = this.getPotential() ;
-		historyIndex++ ;
-		if( historyIndex >= history.length ) {
-			historyIndex = 0 ;
+	/**
+	 * Move this neuron's state into a slot of a shared store. After this
+	 * the neuron is a view of that slot.
+	 *
+	 * @param store the new home of the neuron state
+	 * @param slot the index in the store
+	 */
+	public void attach( NeuronStore store, int slot ) {
+		store.init( slot, a, b, c, d, threshold, getSpikeValue() ) ;
+		if( this.store != null ) {
+			store.copy( this.store, this.slot, slot ) ;
 		}
+		this.store = store ;
+		this.slot = slot ;
 	}
 
 
-	public void reset( ) {
-		isSpiking = false ;
+	/**
+	 * Step this neuron on its own. Neurons attached to a brain
+	 * are stepped in bulk by the brain's @see NeuronStore.
+	 */
+	public void step( double potential, double clock ) {
+		store().step( slot, potential, clock ) ;
+		store().endStep( clock ) ;
+	}
+
 
-		//----------------------------
-		// Reset ODE params on a spike
-		this.currentPotential = c  ;
-		this.u += this.d ;
+	public void reset( ) {
+		store().reset( slot ) ;
 	}
 
 
 	public boolean checkForSpike( double clock ) {
 	    boolean rc = false ;
-		if( this.currentPotential>threshold ) {
+		if( getPotential() > threshold ) {
 			spike( clock ) ;
 			rc = true ;
 		}
@@ -143,86 +125,65 @@ abstract public class Neuron  {
 
 	
 	public void spike( double clock ) {
-		lastSpikeIndex++ ;
-		if( lastSpikeIndex >= lastSpikes.length ) {
-			lastSpikeIndex = 0 ;
-		}			
-		isSpiking = true ;
-		lastSpikes[ lastSpikeIndex ] = clock ;
+		store().spike( slot, clock ) ;
 	}
 
 
-	public void train( Brain brain, DMatrixSparseCSC training ) {
+	/**
+	 * Adjust the weights of synapses onto this neuron.
+	 *
+	 * @param brain the owner of the synapses
+	 * @param sources a reusable list to hold the synapses onto this neuron
+	 */
+	public void train( Brain brain, EdgeList sources ) {
 		if( isSpiking() ) {
 			double lst = lastSpikeTime() ;
-			Neuron sources[] = brain.getInputsTo( id ) ;
-			for( Neuron src : sources ) {
+			brain.getInputsTo( id, sources ) ;
+			for( int i=0 ; i<sources.size() ; i++ ) {
+				Neuron src = brain.getNeuron( sources.id(i) ) ;
                 double dt = lst - src.lastSpikeTime() ;
                 if( dt <= 0 && -dt < learningWindowLTD  ) {
                     double dw = learningRate * Math.exp( -dt / learningRateTauLTD ) ;
-                    brain.addTraining( src.id, id, -dw ) ;
+                    brain.addTraining( sources.slot(i), -dw ) ;
                 } else if ( dt>0 && dt < learningWindowLTP  ) {
                     double dw = learningRate * Math.exp( dt / learningRateTauLTP ) ;
-                    brain.addTraining( src.id, id, dw ) ;
+                    brain.addTraining( sources.slot(i), dw ) ;
                 }
 			}
 		}
 	}
 	
 
-	public void updateFrequency( double clock ) {
-
-		// remove any very old spikes from history
-		// they won't count towards frequency calc.
-		for( int i=0 ; i<lastSpikes.length ; i++ ) {
-			if( (clock - lastSpikes[i]) > 200 ) {
-				lastSpikes[i] = 0 ;
-			}
-		}
-
-		int numSpikes = 0 ;
-		// find earliest spike
-		double earliestSpike = Double.MAX_VALUE ; 
-		for( int i=0 ; i<lastSpikes.length ; i++ ) {
-			if( lastSpikes[i] > 0 ) {
-				numSpikes++ ;
-				earliestSpike = Math.min( earliestSpike, lastSpikes[i] ) ;
-			}
-		}
-		
-		// freq = spikes / second
-		double dt = clock - earliestSpike ;
-		if( dt < 1e-9 ) dt = 1e-9 ;  // zero would be bad ( i.e x/0 )
-		frequency = numSpikes / (dt/1000.0) ;
-	}
-	
-	
 	public double frequency() {		
-		return frequency ;
+		return store().frequency( slot ) ;
 	}
 	
 	
 	public double timeSinceFired( double clock ) { 
-		double lastSpikeTime = lastSpikes[ lastSpikeIndex ] ;
-		return clock - lastSpikeTime ; 
+		return clock - lastSpikeTime() ; 
 	}
 
 	public double lastSpikeTime() { 
-		return  lastSpikes[ lastSpikeIndex ] ;
+		return store().lastSpikeTime( slot ) ;
 	}
 
 	public double[] getHistory() {
-		return history ;
+		return store().getHistory( slot ) ;
 	}
 	public int getHistoryIndex() {
-		return historyIndex ;
+		return store().getHistoryIndex() ;
 	}
 
 	public int getId() { return id ; }
-	public double getPotential() { return currentPotential ; }
+	public double getLearningRate() { return learningRate ; }
+	public double getLearningRateTauLTP() { return learningRateTauLTP ; }
+	public double getLearningRateTauLTD() { return learningRateTauLTD ; }
+	public double getLearningWindowLTP() { return learningWindowLTP ; }
+	public double getLearningWindowLTD() { return learningWindowLTD ; }
+	public double getPotential() { return store().getPotential( slot ) ; }
 	public double getThreshold() { return threshold ; }
 	public double getSpikeValue() { return spikeValue ; }
-	public boolean isSpiking() { return isSpiking ; }
+	public boolean isSpiking() { return store().isSpiking( slot ) ; }
     abstract public boolean isInhibitor() ;
     abstract public NeuronType getType() ;
 
@@ -1,11 +1,9 @@
 package com.rc.neurons;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 
 public class NeuronFactory {
 
-	final static private Random rng = new Random( 128 ) ;
-	
 	final static private double chProb  = .10 ;
 	final static private double rsProb  = .45 ;
 	final static private double fsProb  = .10 ;
@@ -16,7 +14,7 @@ public class NeuronFactory {
 
 	final static private double tcProb  = .05 ;
 	
-	static public Neuron getNeuron( int id ) {
+	static public Neuron getNeuron( int id, SplittableRandom rng ) {
 		double r  = rng.nextDouble() ;
 		r = 0 ;
 		r -= rsProb ;  if( r<0 ) return new NeuronRS(id) ;
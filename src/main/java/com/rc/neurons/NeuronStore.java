@@ -0,0 +1,439 @@
+package com.rc.neurons ;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Holds the transient state of a set of neurons as flat primitive arrays
+ * ( structure of arrays ). A brain owns one of these and steps all its
+ * neurons in a single tight loop, the @see Neuron objects are just views
+ * onto one slot of the store.
+ *
+ * The ODE is the Izhikevich model, params A,B,C & D are copied into the
+ * store when a neuron is attached.
+ *
+ * Spikes are bitsets, one bit per neuron, so the spiking neurons can be
+ * found with Long.numberOfTrailingZeros. The bitsets of the last
+ * SPIKE_HISTORY ticks are kept in a ring.
+ *
+ * The potential history is only kept for neurons that are traced, each
+ * traced neuron has a HISTORY_LENGTH ring in one shared arena, which is
+ * filled in @see #endStep. Untraced neurons cost nothing.
+ *
+ * Firing rate is an exponential moving average that only changes on a
+ * spike, it is decayed to the current time when read.
+ *
+ * @link http://www.izhikevich.org/publications/spikes.htm
+ */
+public class NeuronStore {
+
+    //-------------------------------------------
+    // constants
+	public final static double DEFAULT_RATE_TAU = 200 ;	// mS time constant of the firing rate
+	public final static int HISTORY_LENGTH = 256 ;
+	public final static int SPIKE_HISTORY = 128 ;		// ticks of spike bitsets kept
+
+    //-------------------------------------------
+	// genome static data - one per neuron
+	private final double a[] ;
+	private final double b[] ;
+	private final double c[] ;		// resting potential
+	private final double d[] ;
+	private final double threshold[] ;
+	private final double spikeValue[] ;		// signed, -ve for inhibitors
+
+    //-------------------------------------------
+    // transient state data - one per neuron
+	private final double potential[] ;
+	private final double u[] ;
+	private final long spikes[] ;			// SPIKE_HISTORY bitsets of words longs
+	private final int words ;
+	private int spikeTick ;					// ring slot of the latest tick's spikes
+	private final double lastSpikeTime[] ;
+	private final double rate[] ;			// spikes per mS at rateClock
+	private final double rateClock[] ;
+	private double rateTau ;
+
+	private final int traceSlot[] ;			// ring in the arena, -1 if not traced
+	private int traced[] ;					// neuron of each arena ring
+	private double traces[] ;				// HISTORY_LENGTH per traced neuron
+	private int numTraced ;
+	private int historyIndex ;
+
+	private double lastStepClock ;
+	private final int size ;
+
+
+	public NeuronStore( int size ) {
+		this.size = size ;
+
+		this.a = new double[size] ;
+		this.b = new double[size] ;
+		this.c = new double[size] ;
+		this.d = new double[size] ;
+		this.threshold = new double[size] ;
+		this.spikeValue = new double[size] ;
+
+		this.potential = new double[size] ;
+		this.u = new double[size] ;
+		this.words = ( size + 63 ) >>> 6 ;
+		this.spikes = new long[ SPIKE_HISTORY * words ] ;
+		this.spikeTick = 0 ;
+		this.lastSpikeTime = new double[size] ;
+		this.rate = new double[size] ;
+		this.rateClock = new double[size] ;
+		this.rateTau = DEFAULT_RATE_TAU ;
+
+		this.traceSlot = new int[size] ;
+		Arrays.fill( traceSlot, -1 ) ;
+		this.traced = new int[0] ;
+		this.traces = new double[0] ;
+		this.numTraced = 0 ;
+		this.historyIndex = 0 ;
+		this.lastStepClock = 0 ;
+	}
+
+
+	/**
+	 * Set the static ( genome ) data for one neuron and put it
+	 * into its initial state.
+	 */
+	public void init( int i, double A, double B, double C, double D, double threshold, double spikeValue ) {
+		this.a[i] = A ;
+		this.b[i] = B ;
+		this.c[i] = C ;
+		this.d[i] = D ;
+		this.threshold[i] = threshold ;
+		this.spikeValue[i] = spikeValue ;
+
+		this.potential[i] = -50 ;
+		this.u[i] = 0 ;
+		clearSpike( spikeOffset(0), i ) ;
+		this.lastSpikeTime[i] = 0 ;
+		this.rate[i] = 0 ;
+		this.rateClock[i] = 0 ;
+		if( traceSlot[i] >= 0 ) {
+			int t = traceSlot[i] * HISTORY_LENGTH ;
+			Arrays.fill( traces, t, t + HISTORY_LENGTH, 0 ) ;
+		}
+	}
+
+
+	/**
+	 * Copy the transient state of one neuron from another store
+	 */
+	public void copy( NeuronStore src, int srcIndex, int i ) {
+		this.potential[i] = src.potential[srcIndex] ;
+		this.u[i] = src.u[srcIndex] ;
+		clearSpike( spikeOffset(0), i ) ;
+		if( src.isSpiking( srcIndex ) ) {
+			setSpike( spikeOffset(0), i ) ;
+		}
+		this.lastSpikeTime[i] = src.lastSpikeTime[srcIndex] ;
+		this.rate[i] = src.rate[srcIndex] ;
+		this.rateClock[i] = src.rateClock[srcIndex] ;
+	}
+
+
+	/**
+	 * Restore the ODE state of one neuron, e.g. from a saved image
+	 */
+	public void setState( int i, double potential, double u, boolean spiking ) {
+		this.potential[i] = potential ;
+		this.u[i] = u ;
+		clearSpike( spikeOffset(0), i ) ;
+		if( spiking ) {
+			setSpike( spikeOffset(0), i ) ;
+		}
+	}
+
+
+	/**
+	 * Write the transient state of every neuron, so a store of the same
+	 * neurons can carry on exactly from here, @see #readState. Only the
+	 * latest tick's spikes are written, a step reads no older ones. The
+	 * potential history is left out.
+	 */
+	public void writeState( DataOutput out ) throws IOException {
+		out.writeInt( size ) ;
+		out.writeDouble( lastStepClock ) ;
+		out.writeDouble( rateTau ) ;
+		for( int i=0 ; i<size ; i++ ) {
+			out.writeDouble( potential[i] ) ;
+			out.writeDouble( u[i] ) ;
+			out.writeBoolean( isSpiking(i) ) ;
+			out.writeDouble( lastSpikeTime[i] ) ;
+			out.writeDouble( rate[i] ) ;
+			out.writeDouble( rateClock[i] ) ;
+		}
+	}
+
+
+	/**
+	 * Restore the transient state written by @see #writeState
+	 */
+	public void readState( DataInput in ) throws IOException {
+		int n = in.readInt() ;
+		if( n != size ) {
+			throw new IOException( "Neuron state is for " + n + " neurons, not " + size ) ;
+		}
+		lastStepClock = in.readDouble() ;
+		rateTau = in.readDouble() ;
+		for( int i=0 ; i<size ; i++ ) {
+			double p = in.readDouble() ;
+			double ui = in.readDouble() ;
+			setState( i, p, ui, in.readBoolean() ) ;
+			lastSpikeTime[i] = in.readDouble() ;
+			rate[i] = in.readDouble() ;
+			rateClock[i] = in.readDouble() ;
+		}
+	}
+
+
+	/**
+	 * Set the time of the last completed tick, e.g. when restoring 
+	 * a saved brain, the next step integrates from here.
+	 */
+	public void setClock( double clock ) {
+		this.lastStepClock = clock ;
+	}
+
+
+	/**
+	 * Integrate a contiguous block of neurons for one clock tick. The tick
+	 * is not complete until @see #endStep is called - so blocks may be
+	 * stepped in any order. Blocks stepped at the same time must start
+	 * on a multiple of 64, so they don't share a word of the spike bitset.
+	 *
+	 * @param currents the input potential to each neuron ( indexed by neuron )
+	 * @param from the first neuron to step
+	 * @param to one past the last neuron to step
+	 * @param clock the time at the end of this tick
+	 */
+	public void step( double currents[], int from, int to, double clock ) {
+		double dt = clock - lastStepClock ;
+		int prev = spikeOffset(0) ;
+		int next = spikeOffset(-1) ;
+		for( int i=from ; i<to ; i++ ) {
+			integrate( i, currents[i], dt, clock, prev, next ) ;
+		}
+	}
+
+
+	/**
+	 * Integrate a single neuron for one clock tick.
+	 */
+	public void step( int i, double current, double clock ) {
+		integrate( i, current, clock - lastStepClock, clock, spikeOffset(0), spikeOffset(-1) ) ;
+	}
+
+
+	/**
+	 * Complete a clock tick, all neurons must have been stepped
+	 */
+	public void endStep( double clock ) {
+		lastStepClock = clock ;
+
+		// the next tick's bitset is the oldest in the ring
+		spikeTick = spikeTick + 1 == SPIKE_HISTORY ? 0 : spikeTick + 1 ;
+		int next = spikeOffset(-1) ;
+		Arrays.fill( spikes, next, next + words, 0L ) ;
+
+		for( int t=0 ; t<numTraced ; t++ ) {
+			traces[ t * HISTORY_LENGTH + historyIndex ] = potential[ traced[t] ] ;
+		}
+		historyIndex++ ;
+		if( historyIndex >= HISTORY_LENGTH ) {
+			historyIndex = 0 ;
+		}
+	}
+
+
+	private void integrate( int i, double current, double dt, double clock, int prev, int next ) {
+		if( ( spikes[ prev + (i>>>6) ] & (1L << i) ) != 0 ) {
+			resetState( i ) ;
+		} else {
+			// convert potential in mV to current
+			double in = current * 3.0 ;
+			//--------------------------------------------
+			// ODE params are in millivolts & milliseconds
+			//
+			double cp = potential[i] ;
+			double ui = u[i] ;
+
+			double v = (0.04 * cp + 5) * cp + 140 - ui + in ;
+			u[i] = ui + dt * a[i] * ( b[i] * cp - ui ) ;
+			potential[i] = cp + dt * v ;
+
+			if( potential[i] > threshold[i] ) {
+				recordSpike( i, clock ) ;
+				setSpike( next, i ) ;
+			}
+		}
+	}
+
+
+	public void reset( int i ) {
+		clearSpike( spikeOffset(0), i ) ;
+		resetState( i ) ;
+	}
+
+
+	//----------------------------
+	// Reset ODE params on a spike
+	private void resetState( int i ) {
+		potential[i] = c[i] ;
+		u[i] += d[i] ;
+	}
+
+
+	public void spike( int i, double clock ) {
+		recordSpike( i, clock ) ;
+		setSpike( spikeOffset(0), i ) ;
+	}
+
+
+	private void recordSpike( int i, double clock ) {
+		lastSpikeTime[i] = clock ;
+		rate[i] = rate[i] * Math.exp( ( rateClock[i] - clock ) / rateTau ) + 1.0 / rateTau ;
+		rateClock[i] = clock ;
+	}
+
+
+	private void setSpike( int offset, int i ) {
+		spikes[ offset + (i>>>6) ] |= 1L << i ;
+	}
+
+	private void clearSpike( int offset, int i ) {
+		spikes[ offset + (i>>>6) ] &= ~( 1L << i ) ;
+	}
+
+
+	/**
+	 * Where a tick's spike bitset starts in @see #getSpikes
+	 *
+	 * @param ticksAgo 0 for the latest tick, up to SPIKE_HISTORY-2. 
+	 * 		-1 is the tick being stepped.
+	 * @return the index of the first word of the bitset
+	 */
+	public int spikeOffset( int ticksAgo ) {
+		int ix = spikeTick - ticksAgo ;
+		if( ix < 0 ) ix += SPIKE_HISTORY ;
+		if( ix >= SPIKE_HISTORY ) ix -= SPIKE_HISTORY ;
+		return ix * words ;
+	}
+
+	/**
+	 * The ring of spike bitsets, bit i of a bitset is neuron i. Iterate
+	 * the spiking neurons of a tick like this
+	 * <pre>
+	 *	for( int w=0 ; w&lt;words() ; w++ ) {
+	 *		for( long bits=spikes[offset+w] ; bits!=0 ; bits &amp;= bits-1 ) {
+	 *			int i = (w&lt;&lt;6) + Long.numberOfTrailingZeros( bits ) ;
+	 * </pre>
+	 */
+	public long[] getSpikes() { return spikes ; }
+	public int words() { return words ; }
+
+	/**
+	 * Copy a tick's spikes, e.g. to record a raster of the whole network.
+	 *
+	 * @param ticksAgo 0 for the latest tick, up to SPIKE_HISTORY-2
+	 * @param dest where to put the words() longs of the bitset
+	 * @param destOffset start index in dest
+	 */
+	public void copySpikes( int ticksAgo, long dest[], int destOffset ) {
+		System.arraycopy( spikes, spikeOffset(ticksAgo), dest, destOffset, words ) ;
+	}
+
+	public boolean wasSpiking( int i, int ticksAgo ) {
+		return ( spikes[ spikeOffset(ticksAgo) + (i>>>6) ] & (1L << i) ) != 0 ;
+	}
+
+
+	/**
+	 * The firing rate, decayed to the end of the last tick. 
+	 *
+	 * @return spikes per second
+	 */
+	public double frequency( int i ) {
+		return 1000.0 * rate[i] * Math.exp( ( rateClock[i] - lastStepClock ) / rateTau ) ;
+	}
+
+	/**
+	 * Choose how quickly the firing rate forgets old spikes
+	 *
+	 * @param rateTau the time constant of the moving average, in mS
+	 */
+	public void setRateTau( double rateTau ) {
+		this.rateTau = rateTau ;
+	}
+	public double getRateTau() { return rateTau ; }
+
+
+	public double lastSpikeTime( int i ) {
+		return lastSpikeTime[i] ;
+	}
+
+	/**
+	 * Start recording the potential history of a neuron. The ring
+	 * comes from the arena, which grows as needed.
+	 */
+	public void trace( int i ) {
+		if( traceSlot[i] >= 0 ) {
+			return ;
+		}
+		if( numTraced == traced.length ) {
+			int capacity = Math.max( 16, traced.length * 2 ) ;
+			traced = Arrays.copyOf( traced, capacity ) ;
+			traces = Arrays.copyOf( traces, capacity * HISTORY_LENGTH ) ;
+		}
+		int t = numTraced++ ;
+		traced[t] = i ;
+		traceSlot[i] = t ;
+		Arrays.fill( traces, t * HISTORY_LENGTH, (t+1) * HISTORY_LENGTH, 0 ) ;
+	}
+
+	/**
+	 * Stop recording a neuron's history, its ring is reused by 
+	 * moving the last traced neuron into it.
+	 */
+	public void untrace( int i ) {
+		int t = traceSlot[i] ;
+		if( t < 0 ) {
+			return ;
+		}
+		int last = --numTraced ;
+		if( t != last ) {
+			traced[t] = traced[last] ;
+			traceSlot[ traced[t] ] = t ;
+			System.arraycopy( traces, last * HISTORY_LENGTH, traces, t * HISTORY_LENGTH, HISTORY_LENGTH ) ;
+		}
+		traceSlot[i] = -1 ;
+	}
+
+	public boolean isTraced( int i ) { return traceSlot[i] >= 0 ; }
+
+	/**
+	 * Copy the history of one neuron, the array is in ring order,
+	 * @see #getHistoryIndex gives the next write position. Untraced
+	 * neurons have an empty ( all zero ) history.
+	 */
+	public double[] getHistory( int i ) {
+		int t = traceSlot[i] ;
+		if( t < 0 ) {
+			return new double[ HISTORY_LENGTH ] ;
+		}
+		return Arrays.copyOfRange( traces, t * HISTORY_LENGTH, (t+1) * HISTORY_LENGTH ) ;
+	}
+	public int getHistoryIndex() { return historyIndex ; }
+
+	public int size() { return size ; }
+	public double getPotential( int i ) { return potential[i] ; }
+	public double getRecovery( int i ) { return u[i] ; }
+	public double getThreshold( int i ) { return threshold[i] ; }
+	public double getSpikeValue( int i ) { return spikeValue[i] ; }
+	public boolean isSpiking( int i ) { return ( spikes[ spikeTick * words + (i>>>6) ] & (1L << i) ) != 0 ; }
+}
@@ -1,8 +1,7 @@
 package com.rc.neurons ;
 
-import org.ejml.data.DMatrixSparseCSC;
-
 import com.rc.Brain;
+import com.rc.EdgeList;
 
 
 public class OutputNeuron extends NeuronFS {
@@ -21,17 +20,17 @@ public class OutputNeuron extends NeuronFS {
 
 
 	@Override
-	public void train( Brain brain, DMatrixSparseCSC training  ) { 
+	public void train( Brain brain, EdgeList sources ) { 
 		if( isSpiking() ) {
-			Neuron sources[] = brain.getInputsTo( id ) ;
-			for( Neuron src : sources ) {
+			brain.getInputsTo( id, sources ) ;
+			for( int i=0 ; i<sources.size() ; i++ ) {
 				double dt = supervisedTestingFire ? 0.001 : -0.001 ;
 				if( dt <= 0 && -dt < learningWindowLTD  ) {
 					double dw = learningRate * Math.exp( -dt / learningRateTauLTD ) ;
-					brain.addTraining( src.id, id, -dw ) ;
+					brain.addTraining( sources.slot(i), -dw ) ;
 				} else if ( dt>0 && dt < learningWindowLTP  ) {
 					double dw = learningRate * Math.exp( dt / learningRateTauLTP ) ;
-					brain.addTraining( src.id, id, dw ) ;
+					brain.addTraining( sources.slot(i), dw ) ;
 				}
 			}
 		}
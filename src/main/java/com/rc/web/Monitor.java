@@ -8,7 +8,7 @@ import java.net.URL;
 import java.util.Random;
 
 import com.rc.Brain;
-import org.ejml.data.DMatrixSparseCSC;
+import com.rc.Synapses;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +41,7 @@ public class Monitor implements AutoCloseable {
 	public Monitor( Brain brain ) {
 		this.gson = new GsonBuilder().create() ;
 		this.brain = brain ;
+		this.brain.traceInputsAndOutputs() ;
 		this.random = new Random() ;
 		this.wss = new WebSocketServer( brain ) ;
 	}
@@ -94,16 +95,17 @@ public class Monitor implements AutoCloseable {
 	    logger.info( "Requesting synapse image" ) ;
 		int imageType = BufferedImage.TYPE_BYTE_GRAY ;
 
-        DMatrixSparseCSC synapses = brain.getSynapses() ;
+        Synapses synapses = brain.getSynapses() ;
 
-        final BufferedImage img = new BufferedImage( synapses.numCols, synapses.numRows, imageType);
+        final BufferedImage img = new BufferedImage( synapses.size(), synapses.size(), imageType);
 		Graphics2D graphics = img.createGraphics();
 		graphics.setBackground( Color.BLACK ) ;
-		brain.eachNonZero( (r, c, v) -> {
-					int p = ( (int) (v * 0x7f ) + 0x80 )  ;
-					img.setRGB(r, c, new Color(0, p, p).getRGB());
-				}
-		) ;
+		for( int c=0 ; c<synapses.size() ; c++ ) {
+			for( int s=synapses.colStart(c) ; s<synapses.colEnd(c) ; s++ ) {
+				int p = ( (int) (synapses.weight(s) * 0x7f ) + 0x80 )  ;
+				img.setRGB(synapses.row(s), c, new Color(0, p, p).getRGB());
+			}
+		}
 		rsp.type( "image/png" );
 		rsp.header("expires", "0" ) ;
 		rsp.header("cache-control", "no-cache" ) ;
@@ -127,23 +129,27 @@ public class Monitor implements AutoCloseable {
 		Graphics2D graphics = img.createGraphics() ;
 		graphics.setBackground( Color.BLACK ) ;
 		try {
-			brain.eachNonZero( (r, c, v) -> {
-				int p = (int) ( v * 0xff ) ;
-				if( p<0x5f ){
-					graphics.setColor( new Color(0, 0, 0x90 + p) );
-				} else if( p <0x7f ) {
-					graphics.setColor( new Color(0, p+0x80, 0 ) );
-				} else {
-					graphics.setColor( new Color(p,0,0) );
+			Synapses synapses = brain.getSynapses() ;
+			for( int c=0 ; c<synapses.size() ; c++ ) {
+				for( int s=synapses.colStart(c) ; s<synapses.colEnd(c) ; s++ ) {
+					int r = synapses.row(s) ;
+					int p = (int) ( synapses.weight(s) * 0xff ) ;
+					if( p<0x5f ){
+						graphics.setColor( new Color(0, 0, 0x90 + p) );
+					} else if( p <0x7f ) {
+						graphics.setColor( new Color(0, p+0x80, 0 ) );
+					} else {
+						graphics.setColor( new Color(p,0,0) );
+					}
+
+					int x0 = r / rows ;
+					int y0 = r - ( x0 * rows ) ;
+					int x1 = c / rows ;
+					int y1 = c - ( x1 * rows ) ;
+
+					graphics.drawLine(x0*scale + (scale / 2), y0*scale+ (scale / 2), x1*scale+ (scale / 2), y1*scale+ (scale / 2));
 				}
-
-				int x0 = r / rows ;
-				int y0 = r - ( x0 * rows ) ;
-				int x1 = c / rows ;
-				int y1 = c - ( x1 * rows ) ;
-
-				graphics.drawLine(x0*scale + (scale / 2), y0*scale+ (scale / 2), x1*scale+ (scale / 2), y1*scale+ (scale / 2));
-			} ) ;
+			}
 		} catch( Throwable t ) {
 			logger.error( "Failed to print", t ) ;
 		}
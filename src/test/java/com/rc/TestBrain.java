@@ -1,8 +1,26 @@
 package com.rc;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -49,6 +67,687 @@ public class TestBrain {
 		}
 	}
 
+	@Test
+	public void testEventDrivenMatchesDense() {
+		Brain b = new Brain( 0.3, 2, 4, 8, 10 ) ;
+		double inputs[] = { 9.9, 7.1 } ;
+
+		int spikes = 0 ;
+		for( int t=0 ; t<20_000 ; t++ ) {
+			b.setEventDriven( false ) ;
+			double dense[] = b.calculateNewPotentials().clone() ;
+			b.setEventDriven( true ) ;
+			double events[] = b.calculateNewPotentials() ;
+
+			assertArrayEquals( "Event driven potentials differ at step " + t, dense, events, 1e-9 ) ;
+
+			b.step( inputs ) ;
+			for( int i=0 ; i<b.numNeurons() ; i++ ) {
+				spikes += b.getNeuron(i).isSpiking() ? 1 : 0 ;
+			}
+		}
+		assertTrue( "No spikes were propagated", spikes > 0 ) ;
+	}
+
+	@Test
+	public void testImageReopens() throws Exception {
+		Brain b = new Brain( 0.3, 2, 4, 8, 10 ) ;
+		double inputs[] = { 50, 50 } ;
+		for( int t=0 ; t<500 ; t++ ) {
+			b.step( inputs ) ;
+		}
+
+		File f = File.createTempFile( "brain", ".img" ) ;
+		f.deleteOnExit() ;
+		assertTrue( "Brain not saved", b.save( f.getPath() ) ) ;
+		Brain br = Brain.load( 0.3, f.getPath() ) ;
+
+		assertEquals( "Invalid num inputs recovered", b.getNumInputs(), br.getNumInputs() ) ;
+		assertEquals( "Invalid num outputs recovered", b.getNumOutputs(), br.getNumOutputs() ) ;
+		assertArrayEquals( "Synapses differ", 
+				b.getSynapses().copyWeights(), 
+				br.getSynapses().copyWeights(), 0 ) ;
+		assertTrue( "Reopened synapses are on the heap", br.getSynapses().isDirect() ) ;
+
+		// the reopened brain carries on exactly where the original was
+		for( int t=0 ; t<500 ; t++ ) {
+			b.step( inputs ) ;
+			br.step( inputs ) ;
+			for( int i=0 ; i<b.numNeurons() ; i++ ) {
+				assertEquals( "Potential differs at step " + t, b.getNeuron(i).getPotential(), br.getNeuron(i).getPotential(), 0 ) ;
+			}
+		}
+
+		// weights are copy on write, changing them leaves the file alone
+		float w = br.getSynapses().weight( 0 ) ;
+		br.getSynapses().setWeight( 0, w + 0.5f ) ;
+		assertEquals( "Image file changed", w, Brain.load( 0.3, f.getPath() ).getSynapses().weight( 0 ), 0 ) ;
+
+		// saving back to the same file leaves brains still mapping it alone
+		Brain other = Brain.load( 0.3, f.getPath() ) ;
+		float last = other.getSynapses().weight( other.getSynapses().nnz() - 1 ) ;
+		br.getSynapses().setWeight( br.getSynapses().nnz() - 1, last + 0.25f ) ;
+		assertTrue( "Brain not saved over its image", br.save( f.getPath() ) ) ;
+		assertEquals( "Mapped image changed", last, other.getSynapses().weight( other.getSynapses().nnz() - 1 ), 0 ) ;
+		assertEquals( "Image not saved", w + 0.5f, Brain.load( 0.3, f.getPath() ).getSynapses().weight( 0 ), 0 ) ;
+	}
+
+	@Test
+	public void testSynapseBuilder() {
+		Synapses s = new Synapses.Builder( 4 )
+				.add( 3, 0, 0.5f )
+				.add( 1, 0, 0.25f )
+				.add( 2, 3, 0.75f )
+				.add( 1, 0, 0.125f ) 		// replaces the earlier 1 <- 0
+				.build() ;
+
+		assertEquals( "Invalid synapse count", 3, s.nnz() ) ;
+		assertEquals( "Column not sorted", 1, s.row( s.colStart(0) ) ) ;
+		assertEquals( "Duplicate not replaced", 0.125f, s.get( 1, 0 ), 0 ) ;
+		assertEquals( "Missing synapse", 0.75f, s.get( 2, 3 ), 0 ) ;
+		assertEquals( "Unexpected synapse", -1, s.slot( 2, 0 ) ) ;
+
+		assertTrue( "Row view built before it was used", !s.hasRowView() ) ;
+		assertEquals( "Invalid row size", 1, s.rowEnd(1) - s.rowStart(1) ) ;
+		assertEquals( "Invalid row slot", s.slot( 3, 0 ), s.rowSlot( s.rowStart(3) ) ) ;
+	}
+
+	@Test
+	public void testQuantizedInference() {
+		Brain b = new Brain( 0.3, 6, 10, 10, 20 ) ;
+		Synapses s = b.getSynapses() ;
+		SplittableRandom rng = new SplittableRandom( 9 ) ;
+		double spikes[] = new double[ s.size() ] ;
+		double full[] = new double[ s.size() ] ;
+		double quantized[] = new double[ s.size() ] ;
+
+		for( int bits : new int[] { 8, 16 } ) {
+			// each weight is within half a step of its column's scale, weights are <= 1
+			double step = 1.0 / ( bits == 8 ? Byte.MAX_VALUE : Short.MAX_VALUE ) ;
+			QuantizedSynapses q = new QuantizedSynapses( s, bits ) ;
+			for( int t=0 ; t<500 ; t++ ) {
+				for( int i=0 ; i<spikes.length ; i++ ) {
+					spikes[i] = rng.nextInt( 10 ) != 0 ? 0 : rng.nextBoolean() ? 30 : -30 ;
+				}
+				s.mult( spikes, full ) ;
+				q.mult( spikes, quantized ) ;
+				for( int i=0 ; i<full.length ; i++ ) {
+					double bound = 30 * ( s.rowEnd(i) - s.rowStart(i) ) * ( step / 2 + 1e-6 ) ;
+					assertEquals( bits + " bit current differs at step " + t, full[i], quantized[i], bound ) ;
+				}
+			}
+		}
+
+		// freezing drops the float weights, unfreezing brings back the frozen ones
+		float before[] = s.copyWeights() ;
+		b.setQuantized( 8 ) ;
+		assertTrue( "Float weights kept while frozen", s.isFrozen() && s.weights() == null ) ;
+		float frozen[] = s.copyWeights() ;
+		for( int i=0 ; i<before.length ; i++ ) {
+			assertEquals( "Frozen weight differs", before[i], frozen[i], 0.5 / Byte.MAX_VALUE + 1e-6 ) ;
+			assertEquals( "Frozen weight lookup differs", frozen[i], s.weight(i), 0 ) ;
+		}
+
+		try {
+			b.train( 0 ) ;
+			fail( "A frozen brain was trained" ) ;
+		} catch( IllegalStateException expected ) {
+		}
+		b.setQuantized( 0 ) ;
+		assertArrayEquals( "Thawed weights differ", frozen, s.copyWeights(), 0 ) ;
+		b.train( 0 ) ;
+	}
+
+	@Test
+	public void testQuantizedAccuracy() throws Exception {
+		double patterns[][] = Options.TestPatterns ;
+		Brain b = new Brain( 0.3, 6, 10, 10, 20, 2 ) ;
+		for( int epoch=0 ; epoch<20 ; epoch++ ) {
+			for( int p=0 ; p<patterns.length ; p++ ) {
+				for( int t=0 ; t<100 ; t++ ) {
+					b.step( patterns[p] ) ;
+					b.train( p ) ;
+				}
+			}
+		}
+		File f = File.createTempFile( "brain", ".img" ) ;
+		f.deleteOnExit() ;
+		assertTrue( "Brain not saved", b.save( f.getPath() ) ) ;
+
+		// each copy starts from the same trained state
+		double accuracy = Brain.load( 0.3, f.getPath() ).accuracy( patterns, 300 ) ;
+		for( int bits : new int[] { 16, 8 } ) {
+			Brain frozen = Brain.load( 0.3, f.getPath() ) ;
+			frozen.setQuantized( bits ) ;
+			double delta = frozen.accuracy( patterns, 300 ) - accuracy ;
+			// 16 bits classifies the same, 8 bits may change one pattern
+			double tolerance = bits == 16 ? 0 : 1.0 / patterns.length + 1e-9 ;
+			assertEquals( bits + " bit accuracy changed", 0, delta, tolerance ) ;
+		}
+	}
+
+	@Test
+	public void testSeededConstruction() {
+		Brain b1 = new Brain( 0.3, 6, 10, 12, 20, 42 ) ;
+		Brain b2 = new Brain( 0.3, 6, 10, 12, 20, 42 ) ;
+		Brain b3 = new Brain( 0.3, 6, 10, 12, 20, 43 ) ;
+
+		assertEquals( "Same seed, different synapses", b1.getSynapses().nnz(), b2.getSynapses().nnz() ) ;
+		assertArrayEquals( "Same seed, different weights", b1.getSynapses().copyWeights(), b2.getSynapses().copyWeights(), 0 ) ;
+		for( int id=0 ; id<b1.numNeurons() ; id++ ) {
+			assertEquals( "Same seed, different neurons", b1.getNeuron(id).getType(), b2.getNeuron(id).getType() ) ;
+			for( int s=b1.getSynapses().colStart(id) ; s<b1.getSynapses().colEnd(id) ; s++ ) {
+				assertEquals( "Same seed, different targets", b1.getSynapses().row(s), b2.getSynapses().row(s) ) ;
+			}
+		}
+		assertTrue( "Different seeds, same weights", 
+				!Arrays.equals( b1.getSynapses().copyWeights(), b3.getSynapses().copyWeights() ) ) ;
+	}
+
+	@Test
+	public void testLargeGenome() {
+		// more than 1023 neurons, the old layout overflowed the indexes
+		Brain b = new Brain( TICK, 6, 10, 30, 40, 7 ) ;
+		Genome g = b.toGenome() ;
+		Brain br = new Brain( TICK, g ) ;
+
+		Synapses s = b.getSynapses() ;
+		Synapses sr = br.getSynapses() ;
+		assertTrue( "Genome is not compact", g.capacity() < 3 * s.nnz() ) ;
+		assertEquals( "Invalid num neurons recovered", b.numNeurons(), br.numNeurons() ) ;
+		assertEquals( "Invalid num inputs recovered", b.getNumInputs(), br.getNumInputs() ) ;
+		assertEquals( "Invalid num synapses recovered", s.nnz(), sr.nnz() ) ;
+		for( int c=0 ; c<s.size() ; c++ ) {
+			assertEquals( "Invalid column recovered " + c, s.colStart(c), sr.colStart(c) ) ;
+			for( int i=s.colStart(c) ; i<s.colEnd(c) ; i++ ) {
+				assertEquals( "Invalid row recovered", s.row(i), sr.row(i) ) ;
+				assertEquals( "Invalid weight recovered", s.weight(i), sr.weight(i), 1.0 / Genome.NUMBER_GRANULARITY ) ;
+			}
+		}
+	}
+
+	@Test
+	public void testGenomeCrossoverKeepsColumns() {
+		Brain b1 = new Brain( TICK, 6, 10, 12, 20, 1 ) ;
+		Brain b2 = new Brain( TICK, 6, 10, 12, 20, 2 ) ;
+		Genome p1 = b1.toGenome() ;
+		Genome p2 = b2.toGenome() ;
+		Synapses s1 = b1.getSynapses() ;
+		Synapses s2 = b2.getSynapses() ;
+		SplittableRandom rng = new SplittableRandom( 3 ) ;
+
+		for( int points=0 ; points<4 ; points++ ) {
+			Genome g = new Genome( p1, p2, points, 0.01, rng, Brain.genomeHeader( p1 ) ) ;
+			Synapses s = new Brain( TICK, g ).getSynapses() ;
+
+			// each column is whole from one parent, mutation doesn't touch counts or rows
+			for( int c=0 ; c<s.size() ; c++ ) {
+				assertTrue( "Column " + c + " is from neither parent", sameRows( s, s1, c ) || sameRows( s, s2, c ) ) ;
+			}
+			int lo = Math.min( s1.nnz(), s2.nnz() ) ;
+			int hi = Math.max( s1.nnz(), s2.nnz() ) ;
+			assertTrue( "Child has " + s.nnz() + " synapses, parents " + lo + ".." + hi, 
+					s.nnz() > 0.9 * lo && s.nnz() < 1.1 * hi ) ;
+		}
+
+		// types & the connection probability mutate with the weights
+		int probability = ( p1.records() - 1 ) / 2 ;
+		assertTrue( "Invalid type mutability", p1.isMutable( p1.record( 0 ) ) ) ;
+		assertTrue( "Invalid probability mutability", p1.isMutable( p1.record( probability ) ) ) ;
+
+		// structural mutation spoils a few columns, not the brain's shape
+		Genome g = new Genome( p1, p1, 0, 0.0, rng, Brain.genomeHeader( p1 ) ) ;
+		g.mutateStructure( 0.01, rng ) ;
+		Brain b = new Brain( TICK, g ) ;
+		Synapses s = b.getSynapses() ;
+		assertEquals( "Invalid rows", b1.getRows(), b.getRows() ) ;
+		assertEquals( "Invalid columns", b1.getColumns(), b.getColumns() ) ;
+		int changed = 0 ;
+		for( int c=0 ; c<s.size() ; c++ ) {
+			changed += sameRows( s, s1, c ) ? 0 : 1 ;
+		}
+		assertTrue( "Invalid changed columns " + changed, changed > 0 && changed < s.size() / 2 ) ;
+	}
+
+	private static boolean sameRows( Synapses a, Synapses b, int c ) {
+		int n = a.colEnd(c) - a.colStart(c) ;
+		if( n != b.colEnd(c) - b.colStart(c) ) {
+			return false ;
+		}
+		for( int i=0 ; i<n ; i++ ) {
+			if( a.row( a.colStart(c) + i ) != b.row( b.colStart(c) + i ) ) {
+				return false ;
+			}
+		}
+		return true ;
+	}
+
+	@Test
+	public void testRaceConfidence() {
+		assertEquals( "Invalid z for 97.5%", 1.960, Evolution.zScore( 0.975 ), 1e-3 ) ;
+		assertEquals( "Invalid z for 95%", 1.645, Evolution.zScore( 0.95 ), 1e-3 ) ;
+		assertEquals( "Invalid z for 50%", 0, Evolution.zScore( 0.5 ), 1e-3 ) ;
+	}
+
+	@Test
+	public void testRaceWithFitnessCache() throws Exception {
+		// cached survivors aren't raced, they still take places so children can be raced out
+		int racedOut[] = new int[ 2 ] ;
+		for( int epochs=1 ; epochs<=2 ; epochs++ ) {
+			Evolution evolution = new Evolution( 0.3, 12, 0.01, epochs, 10, 200, 2, 7 ) ;
+			evolution.setFitnessCache( 1000 ) ;
+			evolution.setRacing( 0.6, 6 ) ;
+			evolution.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+			racedOut[ epochs-1 ] = evolution.getRacedOut() ;
+		}
+		// the first epoch has nothing cached, the second races only the children
+		assertTrue( "Invalid raced out children " + racedOut[1] + " after " + racedOut[0], racedOut[1] > racedOut[0] ) ;
+	}
+
+	@Test
+	public void testEvolutionThreadsDontChangeResult() throws Exception {
+		double score = 0 ;
+		long genome = 0 ;
+		for( int threads : new int[] { 1, 3 } ) {
+			// each brain's epoch is one task with its own inputs, so the pool size can't matter
+			Evolution evolution = new Evolution( 0.3, Options.TestPatterns.length, 0.01, 3, 6, 200, threads, 5 ) ;
+			Brain best = evolution.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+			if( threads == 1 ) {
+				score = evolution.getBestScore() ;
+				genome = best.toGenome().hash64() ;
+			} else {
+				assertEquals( "Best score depends on threads", score, evolution.getBestScore(), 0 ) ;
+				assertEquals( "Best brain depends on threads", genome, best.toGenome().hash64() ) ;
+			}
+		}
+	}
+
+	@Test
+	public void testSteadyStateEvolution() throws Exception {
+		for( int cache : new int[] { 0, 1000 } ) {
+			double best = Double.NEGATIVE_INFINITY ;
+			for( int epochs=1 ; epochs<=3 ; epochs++ ) {
+				// one thread makes the same children in the same order, a longer run just makes more
+				Evolution evolution = new Evolution( 0.3, Options.TestPatterns.length, 0.01, epochs, 6, 200, 1, 11 ) ;
+				evolution.setSteadyState( true ) ;
+				evolution.setFitnessCache( cache ) ;
+				evolution.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+
+				// cached children aren't trained, but they're still offered
+				assertEquals( "Invalid children offered", epochs * 3, evolution.getOffers() ) ;
+				assertTrue( "Best score got worse", evolution.getBestScore() >= best ) ;
+				best = evolution.getBestScore() ;
+			}
+		}
+	}
+
+	@Test
+	public void testIslandsMigrate() throws Exception {
+		int epochs = Options.EPOCHS, population = Options.POPULATION, simulations = Options.SIMULATIONS ;
+		int batchSize = Options.BATCH_SIZE, threads = Options.EVOLUTION_THREADS, migration = Options.MIGRATION ;
+		Options.EPOCHS = 3 ;
+		Options.POPULATION = 6 ;
+		Options.SIMULATIONS = Options.TestPatterns.length ;
+		Options.BATCH_SIZE = 20 ;
+		Options.EVOLUTION_THREADS = 1 ;
+		Options.MIGRATION = 1 ;		// migrants move after each of the first two epochs
+		ExecutorService workers = Executors.newFixedThreadPool( 2 ) ;
+		try( ServerSocket server = new ServerSocket( 0 ) ) {
+			List<Future<Void>> islands = new ArrayList<>() ;
+			for( int i=0 ; i<2 ; i++ ) {
+				islands.add( workers.submit( () -> { 
+					Islands.work( "localhost:" + server.getLocalPort() ) ; 
+					return null ; 
+				} ) ) ;
+			}
+			// the coordinator fails if the islands get out of step
+			Brain b = Islands.coordinate( server, 2, 0, 7, 6, 10, 10, 20 ) ;
+			for( Future<Void> f : islands ) {
+				f.get() ;
+			}
+
+			// the workers evolve the coordinator's shape of brain
+			assertEquals( "Invalid island inputs", 6, b.getNumInputs() ) ;
+			assertEquals( "Invalid island outputs", 10, b.getNumOutputs() ) ;
+			assertEquals( "Invalid island rows", 10, b.getRows() ) ;
+			assertEquals( "Invalid island columns", 20, b.getColumns() ) ;
+
+			// the best brain keeps its trained weights, not the genome's rounded ones
+			Synapses s = b.getSynapses() ;
+			Synapses rounded = new Brain( 0.3, b.toGenome() ).getSynapses() ;
+			int exact = 0 ;
+			for( int i=0 ; i<s.nnz() ; i++ ) {
+				exact += s.weight(i) != rounded.weight(i) ? 1 : 0 ;
+			}
+			assertTrue( "Invalid exact weights", exact > 0 ) ;
+		} finally {
+			workers.shutdownNow() ;
+			Options.EPOCHS = epochs ;
+			Options.POPULATION = population ;
+			Options.SIMULATIONS = simulations ;
+			Options.BATCH_SIZE = batchSize ;
+			Options.EVOLUTION_THREADS = threads ;
+			Options.MIGRATION = migration ;
+		}
+	}
+
+	@Test
+	public void testIslandsRefuseSplitResume() throws Exception {
+		File f = File.createTempFile( "island", ".ckpt" ) ;
+		f.deleteOnExit() ;
+		// island 0 has reached epoch 2, island 1 has no checkpoint
+		Brain b = new Brain( 0.3, 6, 10, 10, 20, 3 ) ;
+		Checkpoint.Member members[] = { new Checkpoint.Member( 1, false, false, 0, b.toGenome(), null, null ) } ;
+		new Checkpoint( 2, 1L, members, null ).write( f.getPath() + ".0" ) ;
+		new File( f.getPath() + ".0" ).deleteOnExit() ;
+
+		String checkpoint = Options.CHECKPOINT ;
+		boolean resume = Options.resume ;
+		Options.CHECKPOINT = f.getPath() ;
+		Options.resume = true ;
+		ExecutorService workers = Executors.newFixedThreadPool( 2 ) ;
+		try( ServerSocket server = new ServerSocket( 0 ) ) {
+			List<Future<Void>> islands = new ArrayList<>() ;
+			for( int i=0 ; i<2 ; i++ ) {
+				islands.add( workers.submit( () -> { 
+					Islands.work( "localhost:" + server.getLocalPort() ) ; 
+					return null ; 
+				} ) ) ;
+			}
+			try {
+				Islands.coordinate( server, 2, 0, 7, 6, 10, 10, 20 ) ;
+				fail( "Islands resumed at different epochs" ) ;
+			} catch( IOException expected ) {
+			}
+			for( Future<Void> island : islands ) {
+				try {
+					island.get() ;
+					fail( "An island resumed without the others" ) ;
+				} catch( ExecutionException expected ) {
+				}
+			}
+		} finally {
+			workers.shutdownNow() ;
+			Options.CHECKPOINT = checkpoint ;
+			Options.resume = resume ;
+		}
+	}
+
+	@Test
+	public void testFitnessCache() {
+		FitnessCache cache = new FitnessCache( 2 ) ;
+		cache.put( 1, 10, false ) ;
+		cache.put( 2, 20, true ) ;
+		assertEquals( "Cached score", 10, cache.get( 1 ).score, 0 ) ;
+		cache.put( 3, 30, false ) ;		// 2 is the least recently used
+		assertTrue( "Recent entry evicted", cache.get( 1 ) != null ) ;
+		assertTrue( "Old entry kept", cache.get( 2 ) == null ) ;
+		assertEquals( "Invalid hit rate", 2.0 / 3.0, cache.hitRate(), 1e-12 ) ;
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception {
+		Brain b = new Brain( 0.3, 2, 4, 6, 8, 3 ) ;
+		double inputs[] = { 50, 50 } ;
+		for( int t=0 ; t<150 ; t++ ) {		// part way through a training epoch
+			b.step( inputs ) ;
+			b.train( 1 ) ;
+		}
+		Checkpoint.Member members[] = {
+			new Checkpoint.Member( 1.5, false, true, 42, b.toGenome(), b.getSynapses().copyWeights(), b.saveState() ),
+			new Checkpoint.Member( 0.5, true, false, 0, b.toGenome(), null, null ) 
+		} ;
+		FitnessCache cache = new FitnessCache( 4 ) ;
+		cache.put( 42, 1.5, false ) ;
+		cache.put( 43, 0.5, true ) ;
+		File f = File.createTempFile( "population", ".ckpt" ) ;
+		f.deleteOnExit() ;
+		new Checkpoint( 7, 1234L, members, cache ).write( f.getPath() ) ;
+
+		Checkpoint cp = Checkpoint.read( f.getPath() ) ;
+		assertEquals( "Invalid epoch", 7, cp.epoch ) ;
+		assertEquals( "Invalid rng seed", 1234L, cp.rngSeed ) ;
+		assertEquals( "Invalid population", 2, cp.members.length ) ;
+		assertEquals( "Invalid score", 1.5, cp.members[0].score, 0 ) ;
+		assertEquals( "Invalid key", 42, cp.members[0].key ) ;
+		assertEquals( "Invalid genome", members[0].genome.hash64(), cp.members[0].genome.hash64() ) ;
+		assertArrayEquals( "Invalid weights", members[0].weights, cp.members[0].weights, 0 ) ;
+		assertTrue( "Unexpected weights", cp.members[1].weights == null && cp.members[1].state == null ) ;
+		assertEquals( "Invalid cached score", 0.5, cp.cache.get( 43 ).score, 0 ) ;
+
+		// a brain rebuilt from a member carries on exactly, part way through its training
+		Brain br = new Brain( 0.3, cp.members[0].genome ) ;
+		for( int i=0 ; i<cp.members[0].weights.length ; i++ ) {
+			br.getSynapses().setWeight( i, cp.members[0].weights[i] ) ;
+		}
+		br.restoreState( cp.members[0].state ) ;
+		for( int t=0 ; t<150 ; t++ ) {
+			b.step( inputs ) ;
+			br.step( inputs ) ;
+			b.train( 1 ) ;
+			br.train( 1 ) ;
+			for( int i=0 ; i<b.numNeurons() ; i++ ) {
+				assertEquals( "Potential differs at step " + t, b.getNeuron(i).getPotential(), br.getNeuron(i).getPotential(), 0 ) ;
+			}
+		}
+		assertArrayEquals( "Training differs", b.getSynapses().copyWeights(), br.getSynapses().copyWeights(), 0 ) ;
+
+		// a damaged file is refused
+		try( RandomAccessFile raf = new RandomAccessFile( f, "rw" ) ) {
+			raf.seek( 40 ) ;
+			int v = raf.read() ;
+			raf.seek( 40 ) ;
+			raf.write( v ^ 1 ) ;
+		}
+		try {
+			Checkpoint.read( f.getPath() ) ;
+			fail( "A corrupt checkpoint was read" ) ;
+		} catch( IOException expected ) {
+		}
+	}
+
+	@Test
+	public void testResumeCarriesOn() throws Exception {
+		File f = File.createTempFile( "population", ".ckpt" ) ;
+		f.deleteOnExit() ;
+
+		// without a cache survivors run on from their saved state, with one they keep their score
+		for( int cache : new int[] { 0, 1000 } ) {
+			// 4 epochs in one go, 2 epochs and a checkpoint, then resume for the other 2
+			double score[] = new double[ 2 ] ;
+			long genome[] = new long[ 2 ] ;
+			for( int run=0 ; run<2 ; run++ ) {
+				if( run == 1 ) {
+					Evolution first = new Evolution( 0.3, Options.TestPatterns.length, 0.01, 2, 6, 200, 2, 13 ) ;
+					first.setFitnessCache( cache ) ;
+					first.setCheckpoint( f.getPath(), 1, false ) ;
+					first.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+				}
+				Evolution evolution = new Evolution( 0.3, Options.TestPatterns.length, 0.01, 4, 6, 200, 2, 13 ) ;
+				evolution.setFitnessCache( cache ) ;
+				if( run == 1 ) {
+					evolution.setCheckpoint( f.getPath(), 1, true ) ;
+					assertEquals( "Not resumed", 2, evolution.firstEpoch() ) ;
+				}
+				Brain best = evolution.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+				score[run] = evolution.getBestScore() ;
+				genome[run] = best.toGenome().hash64() ;
+			}
+			assertEquals( "Resumed best score differs", score[0], score[1], 0 ) ;
+			assertEquals( "Resumed best brain differs", genome[0], genome[1] ) ;
+		}
+
+		// a resumed steady state run only makes the children of the epochs left
+		Evolution first = new Evolution( 0.3, Options.TestPatterns.length, 0.01, 2, 6, 200, 1, 13 ) ;
+		first.setCheckpoint( f.getPath(), 1, false ) ;
+		first.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+		Evolution steady = new Evolution( 0.3, Options.TestPatterns.length, 0.01, 4, 6, 200, 1, 13 ) ;
+		steady.setSteadyState( true ) ;
+		steady.setCheckpoint( f.getPath(), 1, true ) ;
+		steady.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+		assertEquals( "Invalid resumed children", 2 * 3, steady.getOffers() ) ;
+
+		// a steady state run writes its own checkpoints, counted in offers
+		f.delete() ;
+		first = new Evolution( 0.3, Options.TestPatterns.length, 0.01, 3, 6, 200, 2, 13 ) ;
+		first.setSteadyState( true ) ;
+		first.setFitnessCache( 1000 ) ;
+		first.setCheckpoint( f.getPath(), 2, false ) ;
+		first.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+		Checkpoint cp = Checkpoint.read( f.getPath() ) ;
+		assertEquals( "Invalid steady checkpoint children", 3 * 3, cp.epoch * 3 + cp.offers ) ;
+		assertEquals( "Invalid steady checkpoint population", 6, cp.members.length ) ;
+		assertTrue( "Invalid steady checkpoint cache", cp.cache != null ) ;
+		steady = new Evolution( 0.3, Options.TestPatterns.length, 0.01, 4, 6, 200, 2, 13 ) ;
+		steady.setSteadyState( true ) ;
+		steady.setCheckpoint( f.getPath(), 2, true ) ;
+		assertEquals( "Not resumed", 3, steady.firstEpoch() ) ;
+		steady.evolve( Options.TestPatterns, 0.3, 6, 10, 10, 20 ) ;
+		assertEquals( "Invalid resumed steady children", 3, steady.getOffers() ) ;
+	}
+
+	@Test
+	public void testEdgeLists() {
+		Brain b = new Brain( TICK, 2, 4, 6, 8 ) ;
+		EdgeList el = new EdgeList() ;
+
+		for( int id=0 ; id<b.numNeurons() ; id++ ) {
+			b.getInputsTo( id, el ) ;
+			int n = 0 ;
+			for( int c=0 ; c<b.numNeurons() ; c++ ) {
+				if( b.getSynapses().isAssigned( id, c ) ) {
+					assertEquals( "Invalid input edge " + id, c, el.id(n) ) ;
+					assertEquals( "Invalid input weight " + id, b.getSynapses().get( id, c ), el.weight(n), 0.0 ) ;
+					n++ ;
+				}
+			}
+			assertEquals( "Invalid incoming edgeList size " + id, n, el.size() ) ;
+
+			b.getOutputsFrom( id, el ) ;
+			n = 0 ;
+			for( int r=0 ; r<b.numNeurons() ; r++ ) {
+				if( b.getSynapses().isAssigned( r, id ) ) {
+					assertEquals( "Invalid output edge " + id, r, el.id(n) ) ;
+					assertEquals( "Invalid output weight " + id, b.getSynapses().get( r, id ), el.weight(n), 0.0 ) ;
+					n++ ;
+				}
+			}
+			assertEquals( "Invalid outgoing edgeList size " + id, n, el.size() ) ;
+		}
+	}
+
+	@Test
+	public void testParallelStepMatchesSequential() {
+		Brain b = new Brain( 0.3, 6, 10, 12, 20 ) ;
+		double inputs[] = new double[ b.getNumInputs() ] ;
+		Arrays.fill( inputs, 50 ) ;
+
+		int spikes = 0 ;
+		for( int t=0 ; t<500 ; t++ ) {
+			b.setThreads( 1 ) ;
+			double sequential[] = b.calculateNewPotentials().clone() ;
+			b.setThreads( 3 ) ;
+			double parallel[] = b.calculateNewPotentials() ;
+
+			assertArrayEquals( "Parallel potentials differ at step " + t, sequential, parallel, 0.0 ) ;
+
+			b.step( inputs ) ;
+			for( int i=0 ; i<b.numNeurons() ; i++ ) {
+				spikes += b.getNeuron(i).isSpiking() ? 1 : 0 ;
+			}
+		}
+		b.setThreads( 1 ) ;
+		assertTrue( "No spikes were propagated", spikes > 0 ) ;
+	}
+
+	@Test
+	public void testOnlineLearning() {
+		Brain b = new Brain( 0.3, 6, 10, 10, 20 ) ;
+		float before[] = b.getSynapses().copyWeights() ;
+		b.setOnlineLearning( true ) ;
+
+		// drive hard enough to make the liquid spike
+		double inputs[] = new double[ b.getNumInputs() ] ;
+		Arrays.fill( inputs, 50 ) ;
+
+		// well inside the first epoch, a batched brain wouldn't have changed yet
+		for( int t=0 ; t<50 ; t++ ) {
+			b.step( inputs ) ;
+			b.train( 2 ) ;
+		}
+		float after[] = b.getSynapses().copyWeights() ;
+
+		assertTrue( "Online learning did not change weights", !Arrays.equals( before, after ) ) ;
+		for( float w : after ) {
+			assertTrue( "Weight out of range " + w, w >= 0.0 && w <= 1.0 ) ;
+		}
+	}
+
+	@Test
+	public void testTraceStdp() {
+		Brain b = new Brain( 0.3, 6, 10, 10, 20 ) ;
+		float before[] = b.getSynapses().copyWeights() ;
+		b.setOnlineLearning( true ) ;
+		b.setTraceStdp( true ) ;
+
+		double inputs[] = new double[ b.getNumInputs() ] ;
+		Arrays.fill( inputs, 50 ) ;
+
+		for( int t=0 ; t<500 ; t++ ) {
+			b.step( inputs ) ;
+			b.train( 2 ) ;
+		}
+		float after[] = b.getSynapses().copyWeights() ;
+
+		int potentiated = 0 ;
+		int depressed = 0 ;
+		for( int i=0 ; i<after.length ; i++ ) {
+			assertTrue( "Weight out of range " + after[i], after[i] >= 0.0 && after[i] <= 1.0 ) ;
+			potentiated += after[i] > before[i] ? 1 : 0 ;
+			depressed += after[i] < before[i] ? 1 : 0 ;
+		}
+		assertTrue( "Trace STDP did not potentiate", potentiated > 0 ) ;
+		assertTrue( "Trace STDP did not depress", depressed > 0 ) ;
+	}
+
+	@Test
+	public void testTickLoopCreatesNoGarbage() {
+		java.lang.management.ThreadMXBean tmx = ManagementFactory.getThreadMXBean() ;
+		Assume.assumeTrue( tmx instanceof com.sun.management.ThreadMXBean ) ;
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)tmx ;
+		Assume.assumeTrue( mx.isThreadAllocatedMemorySupported() ) ;
+		mx.setThreadAllocatedMemoryEnabled( true ) ;
+
+		Brain b = new Brain( 0.3, 6, 10, 10, 20 ) ;
+		b.setFollowing( 42 ) ;
+		assertEquals( "Tick loop allocated memory", 0, allocatedBy( mx, b ) ) ;
+
+		b.setTraceStdp( true ) ;
+		assertEquals( "Tick loop allocated memory - trace STDP", 0, allocatedBy( mx, b ) ) ;
+	}
+
+	private long allocatedBy( com.sun.management.ThreadMXBean mx, Brain b ) {
+		double inputs[] = new double[ b.getNumInputs() ] ;
+		Arrays.fill( inputs, 50 ) ;
+		long id = Thread.currentThread().getId() ;
+
+		// warm up - class loading and JIT deoptimisation may allocate
+		for( int t=0 ; t<20_000 ; t++ ) {
+			b.step( inputs ) ;
+			b.follow() ;
+			b.train( 1 ) ;
+		}
+
+		long overhead = -mx.getThreadAllocatedBytes( id ) + mx.getThreadAllocatedBytes( id ) ;
+		long before = mx.getThreadAllocatedBytes( id ) ;
+		for( int t=0 ; t<10_000 ; t++ ) {
+			b.step( inputs ) ;
+			b.follow() ;
+			b.train( 1 ) ;
+		}
+		return mx.getThreadAllocatedBytes( id ) - before - overhead ;
+	}
+
 	/*
 
 
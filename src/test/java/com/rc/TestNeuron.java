@@ -1,6 +1,17 @@
 package com.rc;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.SplittableRandom;
 
 import org.junit.After;
 import org.junit.Before;
@@ -9,6 +20,7 @@ import org.junit.Test;
 
 import com.rc.neurons.Neuron;
 import com.rc.neurons.NeuronRS;
+import com.rc.neurons.NeuronStore;
 
 public class TestNeuron {
 
@@ -68,6 +80,104 @@ public class TestNeuron {
 		assertEquals( "Bitset double - invalid value 4", v4, w4, accuracy ) ;
 	}
 	
+	@Test
+	public void testGenomeReader() {
+		Genome g = new Genome() ;
+		// 20 numbers cross several word boundaries
+		for( int i=0 ; i<20 ; i++ ) {
+			g.set( ( i * 97 + 13 ) % 1024 ) ;
+		}
+		Genome.Reader r = g.reader( 3 ) ;
+		for( int i=3 ; i<20 ; i++ ) {
+			assertEquals( "Reader differs at " + i, g.getInt( i ), r.nextInt() ) ;
+		}
+		assertEquals( "Reading past the end", 0, r.nextInt() ) ;
+	}
+
+	@Test
+	public void testGenomeCrossover() throws Exception {
+		Genome p1 = new Genome() ;
+		Genome p2 = new Genome() ;
+		for( int i=0 ; i<100 ; i++ ) {
+			p1.set( i ) ;
+			p2.set( 1000 - i ) ;
+		}
+		SplittableRandom rng = new SplittableRandom( 5 ) ;
+		for( int points=0 ; points<4 ; points++ ) {
+			Genome child = new Genome( p1, p2, points, 0.0, rng, 0 ) ;
+			assertEquals( "Child length", 100, child.capacity() ) ;
+			assertEquals( "Fixed param", 0, child.getInt( 0 ) ) ;
+			for( int i=0 ; i<100 ; i++ ) {
+				int v = child.getInt( i ) ;
+				assertTrue( "Number " + i + " is from neither parent", v == i || v == 1000 - i ) ;
+			}
+		}
+		// the original signature picks its own random choices
+		Genome child = new Genome( p1, p2, 0.0, 0 ) ;
+		assertEquals( "Child length", 100, child.capacity() ) ;
+		for( int i=1 ; i<100 ; i++ ) {
+			int v = child.getInt( i ) ;
+			assertTrue( "Number " + i + " is from neither parent", v == i || v == 1000 - i ) ;
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream() ;
+		try( ObjectOutputStream oos = new ObjectOutputStream( bos ) ) {
+			oos.writeObject( p2 ) ;
+		}
+		try( ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( bos.toByteArray() ) ) ) {
+			Genome copy = (Genome)ois.readObject() ;
+			assertEquals( "Copy length", p2.capacity(), copy.capacity() ) ;
+			for( int i=0 ; i<100 ; i++ ) {
+				assertEquals( "Copy differs at " + i, p2.getInt( i ), copy.getInt( i ) ) ;
+			}
+		}
+	}
+
+	@Test
+	public void testGenomeHash() {
+		Genome g1 = new Genome() ;
+		Genome g2 = new Genome() ;
+		for( int i=0 ; i<50 ; i++ ) {
+			g1.set( i * 7 ) ;
+			g2.set( i * 7 ) ;
+		}
+		assertEquals( "Equal genomes, different hashes", g1.hash64(), g2.hash64() ) ;
+		g2.set( 1, 49 ) ;
+		assertTrue( "One number changed, same hash", g1.hash64() != g2.hash64() ) ;
+		g2.set( 49 * 7, 49 ) ;
+		g2.set( 0 ) ;
+		assertTrue( "Longer genome, same hash", g1.hash64() != g2.hash64() ) ;
+	}
+
+	@Test
+	public void testGenomeWireFormat() throws Exception {
+		Genome g = new Genome() ;
+		for( int i=0 ; i<77 ; i++ ) {
+			g.set( ( i * 131 ) % 1024 ) ;
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream() ;
+		g.write( new DataOutputStream( bos ) ) ;
+		// no layout costs a record count and a mutable flag
+		assertEquals( "Wire format is not packed", 4 + 8 * ( ( 77 * Genome.BITS_PER_NUMBER + 63 ) / 64 ) + 4 + 4, bos.size() ) ;
+
+		Genome copy = Genome.read( new DataInputStream( new ByteArrayInputStream( bos.toByteArray() ) ) ) ;
+		assertEquals( "Copy length", g.capacity(), copy.capacity() ) ;
+		assertEquals( "Copy differs", g.hash64(), copy.hash64() ) ;
+
+		// the layout goes with the numbers
+		g.startRecord() ;
+		g.setMutable( 5 ) ;
+		g.startRecord() ;
+		g.set( 6 ) ;
+		bos.reset() ;
+		g.write( new DataOutputStream( bos ) ) ;
+		copy = Genome.read( new DataInputStream( new ByteArrayInputStream( bos.toByteArray() ) ) ) ;
+		assertEquals( "Copy records", 2, copy.records() ) ;
+		assertTrue( "Mutable number lost", copy.isMutable( 77 ) ) ;
+		assertFalse( "Fixed number is mutable", copy.isMutable( 78 ) ) ;
+		assertFalse( "Fixed number is mutable", copy.isMutable( 3 ) ) ;
+	}
+
 	@Test
 	public void testGenomeSubsequence() {
 	}
@@ -76,6 +186,78 @@ public class TestNeuron {
 	public void testNeuron() {
 		Neuron n = new NeuronRS( 1 ) ;
 	}
+
+	@Test
+	public void testNeuronStoreView() {
+		Neuron alone = new NeuronRS( 0 ) ;
+		Neuron view = new NeuronRS( 1 ) ;
+
+		NeuronStore store = new NeuronStore( 2 ) ;
+		view.attach( store, 1 ) ;
+
+		double currents[] = { 0, 5 } ;
+		double clock = 0 ;
+		boolean wasSpiking = false ;
+		for( int i=0 ; i<1000 ; i++ ) {
+			clock += 0.3 ;
+			alone.step( currents[1], clock ) ;
+			store.step( currents, 1, 2, clock ) ;
+			store.endStep( clock ) ;
+			assertEquals( "View potential differs at step " + i, alone.getPotential(), view.getPotential(), 1e-12 ) ;
+			assertEquals( "View spike differs at step " + i, alone.isSpiking(), view.isSpiking() ) ;
+			assertEquals( "Spike history differs at step " + i, wasSpiking, store.wasSpiking( 1, 1 ) ) ;
+			wasSpiking = view.isSpiking() ;
+		}
+	}
+
+	@Test
+	public void testTraceSubscription() {
+		NeuronStore store = new NeuronStore( 3 ) ;
+		for( int i=0 ; i<3 ; i++ ) {
+			store.init( i, 0.02, 0.2, -65, 8, 30, 30 ) ;
+		}
+		store.trace( 0 ) ;
+		store.trace( 2 ) ;
+
+		double currents[] = { 5, 5, 5 } ;
+		double clock = 0 ;
+		for( int i=0 ; i<10 ; i++ ) {
+			clock += 0.3 ;
+			store.step( currents, 0, 3, clock ) ;
+			store.endStep( clock ) ;
+		}
+		double before[] = store.getHistory( 2 ) ;
+		assertEquals( "Traced neuron has a history", store.getPotential( 2 ), before[ store.getHistoryIndex()-1 ], 0 ) ;
+		assertEquals( "Untraced neuron has no history", 0, store.getHistory( 1 )[ store.getHistoryIndex()-1 ], 0 ) ;
+
+		// 2 moves into 0's ring, its history must move with it
+		store.untrace( 0 ) ;
+		assertFalse( store.isTraced( 0 ) ) ;
+		assertArrayEquals( before, store.getHistory( 2 ), 0 ) ;
+	}
+
+	@Test
+	public void testFiringRate() {
+		NeuronStore store = new NeuronStore( 1 ) ;
+		store.init( 0, 0.02, 0.2, -65, 8, 30, 30 ) ;
+		store.setRateTau( 200 ) ;
+
+		// spike every 10mS for long enough to settle, should be ~100Hz
+		double clock = 0 ;
+		for( int i=0 ; i<5000 ; i++ ) {
+			clock += 1 ;
+			if( i % 10 == 0 ) {
+				store.spike( 0, clock ) ;
+			}
+			store.endStep( clock ) ;
+		}
+		assertEquals( "Steady firing rate", 100, store.frequency( 0 ), 5 ) ;
+
+		// silence decays the rate without any further updates
+		clock += 200 ;
+		store.endStep( clock ) ;
+		assertEquals( "Decayed firing rate", 100 / Math.E, store.frequency( 0 ), 5 ) ;
+	}
 	
 	
 }